@@ -0,0 +1,69 @@
+#!/usr/bin/env bash
+# loopback harness with -Dsync.virtualThreads=true against the fixed pools, on the JDK of $JAVA, every wire mode
+# JDK 21+: the run must report virtual threads, older JDKs (7, 8, ...): the fallback notice, results byte-identical,
+# no stack trace in either run, e.g. of an unmap
+# usage: CP=target/sync-1.0.jar JAVA=/path/to/jdk/bin/java ./check_virtual_threads.sh [dataDir] [recordNum]
+
+JAVA=${JAVA:-java}
+CP=${CP:-./target/sync-1.0.jar}
+dataDir=${1:-/tmp/vt_check_data}
+recordNum=${2:-2000000}
+workDir=$(mktemp -d /tmp/vt_check.XXXXXX)
+schema="middleware5"
+tableName="student"
+start=100000
+end=2000000
+port=5530
+
+# 1.8.0_392 -> 8, 21.0.1 -> 21
+version=$("$JAVA" -version 2>&1 | head -1 | sed -E 's/.*version "([^"]*)".*/\1/')
+major=${version%%.*}
+[ "$major" = "1" ] && major=$(echo "$version" | cut -d. -f2)
+if [ "$major" -ge 21 ]; then
+    expected="virtual threads, workers unbounded"
+else
+    expected="virtual threads unavailable"
+fi
+echo "java $version, expecting \`$expected\`"
+
+if [ ! -d "$dataDir" ]; then
+    "$JAVA" -cp "$CP" com.alibaba.middleware.race.sync.server2.unitTest.CanalLogGenerator "$dataDir" 4 $recordNum 7 SKEWED 0.8 3,5,1,1 0.3 || exit 1
+fi
+
+failed=0
+for wireMode in result split compact compact-deflate zero-copy striped-4 ranges; do
+    modeFailed=0
+    for virtual in false true; do
+        port=$((port + 1))
+        log="$workDir/$wireMode.$virtual.log"
+        timeout 600 "$JAVA" -Dsync.virtualThreads=$virtual -cp "$CP" \
+            com.alibaba.middleware.race.sync.server2.unitTest.LoopbackHarness \
+            "$dataDir" "$workDir/$wireMode.$virtual.rs" $schema $tableName $start $end warm $port $wireMode > "$log" 2>&1
+        if [ $? -ne 0 ]; then
+            echo "FAIL $wireMode virtualThreads=$virtual: exit or timeout, see $log"
+            modeFailed=1
+        fi
+    done
+    if grep -q "Exception" "$workDir/$wireMode.false.log" "$workDir/$wireMode.true.log"; then
+        echo "FAIL $wireMode: stack trace in $workDir/$wireMode.*.log"
+        modeFailed=1
+    fi
+    if ! grep -q "$expected" "$workDir/$wireMode.true.log"; then
+        echo "FAIL $wireMode: no \`$expected\` in $workDir/$wireMode.true.log"
+        modeFailed=1
+    fi
+    for pooled in "$workDir/$wireMode.false.rs"*; do
+        if ! cmp -s "$pooled" "${pooled/.false.rs/.true.rs}"; then
+            echo "FAIL $wireMode: $pooled differs from the virtual-thread result"
+            modeFailed=1
+        fi
+    done
+    [ $modeFailed -eq 0 ] && echo "ok   $wireMode"
+    failed=$((failed | modeFailed))
+done
+
+if [ $failed -eq 0 ]; then
+    rm -rf "$workDir"
+    echo "virtual threads: all wire modes match the fixed pools on java $version"
+fi
+exit $failed
@@ -0,0 +1,78 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import com.alibaba.middleware.race.sync.server2.unitTest.CanalLogGenerator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * shared setup of the benchmarks: one student table, every key in range, restored through the real pipeline stages
+ */
+final class BenchmarkFixtures {
+    static final int RECORD_NUM = 10000;
+    static final int POPULATE_NUM = 200000;
+
+    private BenchmarkFixtures() {
+    }
+
+    static void initTables(long maxKey) {
+        PipelinedComputation.initRange(0, maxKey + 1);
+        TableRegistry.init(new ResultSinkFactory() {
+            @Override
+            public ResultSink sinkOf(String schemaName, String tableName) {
+                return new ResultSink() {
+                    @Override
+                    public void send(ByteBuffer segment) {
+                    }
+                };
+            }
+        });
+    }
+
+    // opType: INSERT, UPDATE, DELETE or PK_UPDATE
+    static CanalLogGenerator opOnly(CanalLogGenerator generator, String opType) {
+        switch (opType) {
+            case "INSERT":
+                return generator.opMix(1, 0, 0, 0);
+            case "UPDATE":
+                return generator.opMix(0, 1, 0, 0);
+            case "DELETE":
+                return generator.opMix(0, 0, 1, 0);
+            default:
+                return generator.opMix(0, 0, 0, 1);
+        }
+    }
+
+    static TableSchema studentTable() {
+        return TableRegistry.allTables()[0];
+    }
+
+    // scan and restore log into the shards of its table, like one FileTransformTask
+    static TableSchema restore(ByteBuffer log) throws Exception {
+        RecordScanner recordScanner = new RecordScanner(log, 0, log.limit());
+        recordScanner.compute();
+        ReorderRing reorderRing = new ReorderRing(1);
+        recordScanner.publishInOrder(reorderRing, reorderRing.claim());
+        RestoreShard.awaitAllRestored();
+        return studentTable();
+    }
+
+    // scan only, packed operations of the student table, one buffer per restore shard, empty ones included
+    static OperationBuffer[] scanIntoShards(ByteBuffer log) {
+        RecordScanner recordScanner = new RecordScanner(log, 0, log.limit());
+        recordScanner.compute();
+        OperationBuffer[] shardBuffers = recordScanner.shardBuffersOf(studentTable());
+        for (int i = 0; i < shardBuffers.length; i++) {
+            if (shardBuffers[i] == null)
+                shardBuffers[i] = OperationBuffer.acquire();
+        }
+        return shardBuffers;
+    }
+
+    // what the restore shards do after compute, so that scanning runs on pooled buffers
+    static void recycle(RecordScanner recordScanner) {
+        for (OperationBuffer operationBuffer : recordScanner.shardBuffersOf(studentTable())) {
+            if (operationBuffer != null)
+                operationBuffer.recycle();
+        }
+    }
+}
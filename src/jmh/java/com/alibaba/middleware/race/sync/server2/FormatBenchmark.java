@@ -0,0 +1,77 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import com.alibaba.middleware.race.sync.server2.operations.InsertOperation;
+import com.alibaba.middleware.race.sync.server2.unitTest.CanalLogGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * result side over a table populated with POPULATE_NUM live rows:
+ * formatting of one row, and the key-ordered segment emission of the whole table
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatBenchmark {
+    private TableSchema tableSchema;
+    private ShardRowStore store;
+    private int[] liveSlots;
+    private int nextSlot = 0;
+    private InsertOperation cursor;
+    private ExecutorService evalPool;
+    private long emittedBytes;
+
+    private final ResultSink countingSink = new ResultSink() {
+        @Override
+        public void send(ByteBuffer segment) {
+            emittedBytes += segment.limit();
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        CanalLogGenerator generator = new CanalLogGenerator(17).opMix(1, 0, 0, 0);
+        BenchmarkFixtures.initTables(generator.maxKey());
+        tableSchema = BenchmarkFixtures.restore(generator.generate(BenchmarkFixtures.POPULATE_NUM));
+
+        store = tableSchema.restoreEngine.shards[0].store;
+        int liveNum = 0;
+        for (int slot = store.nextLiveSlot(0, store.capacity); slot != -1; slot = store.nextLiveSlot(slot + 1, store.capacity)) {
+            liveNum++;
+        }
+        liveSlots = new int[liveNum];
+        liveNum = 0;
+        for (int slot = store.nextLiveSlot(0, store.capacity); slot != -1; slot = store.nextLiveSlot(slot + 1, store.capacity)) {
+            liveSlots[liveNum++] = slot;
+        }
+        cursor = new InsertOperation(-1, tableSchema.columnNum());
+        evalPool = Executors.newFixedThreadPool(PipelinedComputation.EVAL_WORKER_NUM);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        evalPool.shutdown();
+        PipelinedComputation.restorePool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] getOneLineBytesEfficient() {
+        cursor.loadFromStore(store, tableSchema.columnNum(), liveSlots[nextSlot]);
+        nextSlot = nextSlot + 1 < liveSlots.length ? nextSlot + 1 : 0;
+        return cursor.getOneLineBytesEfficient(tableSchema);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkFixtures.POPULATE_NUM)
+    public long emitResults() {
+        RestoreComputation.parallelEvalAndSend(evalPool, tableSchema, countingSink);
+        return emittedBytes;
+    }
+}
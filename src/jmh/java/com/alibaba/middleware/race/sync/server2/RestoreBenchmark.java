@@ -0,0 +1,93 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import com.alibaba.middleware.race.sync.server2.unitTest.CanalLogGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * restore hot paths over a table populated with POPULATE_NUM live rows:
+ * packing of one insert record, merge of one update, and RestoreComputation.compute of a scanned batch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RestoreBenchmark {
+    // a scanned batch of one op type, deletes and pk updates are no-ops after the first invocation
+    @State(Scope.Thread)
+    public static class Batch {
+        @Param({"INSERT", "UPDATE", "DELETE", "PK_UPDATE"})
+        public String opType;
+
+        OperationBuffer[] shardBuffers;
+
+        @Setup(Level.Trial)
+        public void setUp(RestoreBenchmark restoreBenchmark) {
+            shardBuffers = BenchmarkFixtures.scanIntoShards(
+                    BenchmarkFixtures.opOnly(restoreBenchmark.generator, opType).generate(BenchmarkFixtures.RECORD_NUM));
+        }
+    }
+
+    private CanalLogGenerator generator;
+    private TableSchema tableSchema;
+    private ByteBuffer[] stringValues;
+    private OperationBuffer insertBuffer;
+    private OperationBuffer updateBuffer;
+    private ShardRowStore updateStore;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        generator = new CanalLogGenerator(17).opMix(1, 0, 0, 0);
+        BenchmarkFixtures.initTables(generator.maxKey());
+        tableSchema = BenchmarkFixtures.restore(generator.generate(BenchmarkFixtures.POPULATE_NUM));
+
+        stringValues = new ByteBuffer[]{ByteBuffer.wrap("王".getBytes("UTF-8")),
+                ByteBuffer.wrap("天明".getBytes("UTF-8")), ByteBuffer.wrap("男".getBytes("UTF-8"))};
+
+        // an update of one score column on the first live row
+        updateStore = tableSchema.restoreEngine.shards[0].store;
+        int slot = updateStore.nextLiveSlot(0, updateStore.capacity);
+        updateBuffer = new OperationBuffer();
+        updateBuffer.beginRecord(OperationBuffer.UPDATE, updateStore.keyOf(slot));
+        updateBuffer.addNumber(3, 99);
+        insertBuffer = new OperationBuffer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        PipelinedComputation.restorePool.shutdown();
+    }
+
+    // what RecordScanner does per insert record after locating the values
+    @Benchmark
+    public OperationBuffer addColumns() {
+        insertBuffer.clear();
+        insertBuffer.beginRecord(OperationBuffer.INSERT, 1);
+        for (int i = 0; i < stringValues.length; i++) {
+            insertBuffer.addString(i, tableSchema.dictionaryOf(i), stringValues[i]);
+        }
+        insertBuffer.addNumber(3, 87);
+        insertBuffer.addNumber(4, 12345);
+        return insertBuffer;
+    }
+
+    @Benchmark
+    public ShardRowStore mergeColumns() {
+        RestoreComputation.compute(updateBuffer, updateStore);
+        return updateStore;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkFixtures.RECORD_NUM)
+    public TableSchema compute(Batch batch) {
+        RestoreShard[] shards = tableSchema.restoreEngine.shards;
+        for (int i = 0; i < shards.length; i++) {
+            RestoreComputation.compute(batch.shardBuffers[i], shards[i].store);
+        }
+        return tableSchema;
+    }
+}
@@ -0,0 +1,49 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import com.alibaba.middleware.race.sync.server2.unitTest.CanalLogGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RecordScanner per op type, records/s of one scanner over a mapped-like direct buffer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({"INSERT", "UPDATE", "DELETE", "PK_UPDATE"})
+    public String opType;
+
+    @Param({"UNIFORM", "SKEWED"})
+    public String keyDistribution;
+
+    private ByteBuffer log;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        CanalLogGenerator generator = new CanalLogGenerator(17)
+                .keyDistribution(CanalLogGenerator.KeyDistribution.valueOf(keyDistribution), 0.8)
+                .prepopulate(BenchmarkFixtures.POPULATE_NUM);
+        log = BenchmarkFixtures.opOnly(generator, opType).generate(BenchmarkFixtures.RECORD_NUM);
+        BenchmarkFixtures.initTables(generator.maxKey());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        PipelinedComputation.restorePool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkFixtures.RECORD_NUM)
+    public RecordScanner scanRecords() {
+        RecordScanner recordScanner = new RecordScanner(log, 0, log.limit());
+        recordScanner.compute();
+        BenchmarkFixtures.recycle(recordScanner);
+        return recordScanner;
+    }
+}
@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * Created by will on 6/6/2017.
@@ -15,22 +16,37 @@ import java.nio.channels.FileChannel;
 public class Client {
 //    public static Logger logger;
 
-    private static NioClient nativeClient = null;
+    private final NioClient nativeClient;
 
     public static void main(String[] args) {
         initProperties();
 //        logger = LoggerFactory.getLogger(Client.class);
-        new Client(args[0]).start();
+        // ip schema table start end: a range request to a RangeServer
+        if (args.length > 4) {
+            new Client(args[0]).requestRange(Arrays.copyOfRange(args, 1, 5),
+                    Constants.RESULT_HOME + File.separator + Constants.RESULT_FILE_NAME);
+        } else {
+            new Client(args[0]).start();
+        }
 //        logger.info("Current client time:" + System.currentTimeMillis());
     }
 
     public Client(String ip) {
-        nativeClient = new NioClient(ip, Constants.SERVER_PORT);
+        this(ip, Constants.SERVER_PORT);
+    }
+
+    // used by the loopback harness
+    public Client(String ip, int port) {
+        nativeClient = new NioClient(ip, port);
     }
 
     public void start() {
+        start(Constants.RESULT_HOME + File.separator + Constants.RESULT_FILE_NAME);
+    }
+
+    public void start(String resultFilePath) {
         try {
-            FileChannel fileChannel = new RandomAccessFile(Constants.RESULT_HOME + File.separator + Constants.RESULT_FILE_NAME, "rw").getChannel();
+            FileChannel fileChannel = new RandomAccessFile(resultFilePath, "rw").getChannel();
             nativeClient.start(fileChannel);
             fileChannel.close();
         } catch (IOException e) {
@@ -38,6 +54,16 @@ public class Client {
         }
     }
 
+    public void requestRange(String[] rangeArgs, String resultFilePath) {
+        try {
+            FileChannel fileChannel = new RandomAccessFile(resultFilePath, "rw").getChannel();
+            nativeClient.requestRange(rangeArgs, fileChannel);
+            fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * 初始化系统属性
      */
@@ -1,9 +1,24 @@
 package com.alibaba.middleware.race.sync.NioSocket;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Created by will on 8/6/2017.
+ * schema, table, start, end, and the wire mode when the result is not sent as TSV rows over one connection
  */
 public class ArgumentsPayloadBuilder {
+    // the client restores the operation stream
+    public static final String SPLIT_COMPUTE = "split";
+    // CompactResultCodec frames, plain or deflated
+    public static final String COMPACT_WIRE = "compact";
+    public static final String COMPACT_DEFLATE_WIRE = "compact-deflate";
+    // TSV rows, the client reads them straight into the mapped result file
+    public static final String ZERO_COPY_RESULT = "zero-copy";
+    // TSV rows striped across parallel connections, the stream number follows the wire mode
+    public static final String STRIPED_RESULT = "striped";
+
     public String[] args;
 
     private char SPLIT = '\t';
@@ -13,21 +28,49 @@ public class ArgumentsPayloadBuilder {
     }
 
     public ArgumentsPayloadBuilder(String argsString) {
-        args = new String[4];
-        int currentIndex = 0;
+        List<String> argList = new ArrayList<>();
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < argsString.length(); i++) {
             if (argsString.charAt(i) != SPLIT) {
                 sb.append(argsString.charAt(i));
             } else {
-                args[currentIndex++] = sb.toString();
+                argList.add(sb.toString());
                 sb.setLength(0);
             }
         }
+        args = argList.toArray(new String[argList.size()]);
+    }
+
+    // server args with the wire mode appended
+    public static String[] withWireMode(String[] args, String wireMode) {
+        String[] modeArgs = Arrays.copyOf(args, 5);
+        modeArgs[4] = wireMode;
+        return modeArgs;
+    }
+
+    // server args with the striped wire mode and its stream number appended
+    public static String[] withStreams(String[] args, int streamNum) {
+        String[] modeArgs = Arrays.copyOf(args, 6);
+        modeArgs[4] = STRIPED_RESULT;
+        modeArgs[5] = String.valueOf(streamNum);
+        return modeArgs;
+    }
+
+    public int streamNum() {
+        return STRIPED_RESULT.equals(wireMode()) ? Integer.parseInt(args[5]) : 1;
+    }
+
+    // null for TSV rows
+    public String wireMode() {
+        return args.length > 4 ? args[4] : null;
     }
 
     @Override
     public String toString() {
-        return args[0] + SPLIT + args[1] + SPLIT + args[2] + SPLIT + args[3] + SPLIT;
+        StringBuilder sb = new StringBuilder();
+        for (String arg : args) {
+            sb.append(arg).append(SPLIT);
+        }
+        return sb.toString();
     }
 }
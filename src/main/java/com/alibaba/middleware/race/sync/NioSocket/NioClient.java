@@ -3,14 +3,29 @@ package com.alibaba.middleware.race.sync.NioSocket;
 //import org.slf4j.Logger;
 //import org.slf4j.LoggerFactory;
 
+import com.alibaba.middleware.race.sync.server2.CompactResultCodec;
+import com.alibaba.middleware.race.sync.server2.FileUtil;
+import com.alibaba.middleware.race.sync.server2.OperationStreamReplayer;
+import com.alibaba.middleware.race.sync.server2.PipelineExecutors;
+import com.alibaba.middleware.race.sync.server2.ResultSink;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 //import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
 /**
  * Created by will on 24/6/2017.
@@ -22,6 +37,9 @@ public class NioClient {
     private SocketChannel clientChannel;
 
     private ByteBuffer recvSizeBuff = ByteBuffer.allocate(4);// always use int size
+    private ByteBuffer chunkBuff = ByteBuffer.allocate(64 * 1024);
+    private static final int RESULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int STRIPE_BUFFER_SIZE = 1024 * 1024;
 
     public NioClient(String hostName, int port){
 //        logger = LoggerFactory.getLogger(NioClient.class);
@@ -31,13 +49,17 @@ public class NioClient {
     }
 
     private void establishConnection(){
+        clientChannel = connect();
+    }
+
+    private SocketChannel connect(){
         while(true) {
             try {
-                clientChannel = SocketChannel.open();
-                clientChannel.configureBlocking(true);
-                clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
-                clientChannel.connect(new InetSocketAddress(hostName, port));
-                break;
+                SocketChannel socketChannel = SocketChannel.open();
+                socketChannel.configureBlocking(true);
+                socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                socketChannel.connect(new InetSocketAddress(hostName, port));
+                return socketChannel;
             } catch (IOException e) {
 //                logger.info("server not ready, reconnecting.....");
             }
@@ -49,13 +71,14 @@ public class NioClient {
         }
     }
 
+    // -1 when server closed the connection
     private int recvChunkSize() throws IOException {
         recvSizeBuff.clear();
         int recvCount = 0;
         while(recvCount < 4){
             int rc = clientChannel.read(recvSizeBuff);
             if(rc < 0)
-                break;
+                return -1;
             recvCount+=rc;
         }
 
@@ -77,16 +100,30 @@ public class NioClient {
             while (recvCount < chunkSize){
                 recvCount += clientChannel.read(recvBuff);
             }
-            String[] args = new ArgumentsPayloadBuilder(new String(recvBuff.array(), 0, chunkSize)).args;
-
-//            logger.info(Arrays.toString(args));
+            ArgumentsPayloadBuilder argumentsPayload = new ArgumentsPayloadBuilder(new String(recvBuff.array(), 0, chunkSize));
 
-            chunkSize = recvChunkSize();
+//            logger.info(Arrays.toString(argumentsPayload.args));
 
-            outputFile.transferFrom(clientChannel, 0, chunkSize);
+            String wireMode = argumentsPayload.wireMode();
+            if (ArgumentsPayloadBuilder.SPLIT_COMPUTE.equals(wireMode)) {
+                replayOperations(argumentsPayload.args, outputFile);
+                return;
+            }
+            if (ArgumentsPayloadBuilder.COMPACT_WIRE.equals(wireMode) || ArgumentsPayloadBuilder.COMPACT_DEFLATE_WIRE.equals(wireMode)) {
+                decodeFrames(outputFile);
+                return;
+            }
+            if (ArgumentsPayloadBuilder.STRIPED_RESULT.equals(wireMode)) {
+                receiveStriped(outputFile, argumentsPayload.streamNum());
+                return;
+            }
+            // without FileUtil.canUnmap every window would stay mapped until a GC, chunks are then transferred
+            if (ArgumentsPayloadBuilder.ZERO_COPY_RESULT.equals(wireMode) && FileUtil.canUnmap) {
+                receiveIntoMappedFile(outputFile);
+                return;
+            }
 
-            clientChannel.finishConnect();
-            clientChannel.close();
+            receiveChunks(outputFile);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -94,4 +131,202 @@ public class NioClient {
         }
     }
 
+    // result arrives as a stream of key-ordered chunks, until server closes
+    private void receiveChunks(FileChannel outputFile) throws IOException {
+        long position = 0;
+        int chunkSize;
+        while ((chunkSize = recvChunkSize()) >= 0) {
+            long chunkEnd = position + chunkSize;
+            while (position < chunkEnd) {
+                long transferred = outputFile.transferFrom(clientChannel, position, chunkEnd - position);
+                if (transferred <= 0)
+                    throw new IOException("connection closed in the middle of a chunk");
+                position += transferred;
+            }
+        }
+        outputFile.truncate(position);
+
+        clientChannel.finishConnect();
+        clientChannel.close();
+    }
+
+    // a `schema table start end` request to a RangeServer, the result arrives like the one of the primary run
+    public void requestRange(String[] args, FileChannel outputFile) throws IOException {
+        byte[] payload = new ArgumentsPayloadBuilder(args).toString().getBytes();
+        ByteBuffer request = ByteBuffer.allocate(5 + payload.length);
+        request.put(RangeServer.REQUIRE_RANGE).putInt(payload.length).put(payload);
+        request.flip();
+        while (request.hasRemaining()) {
+            clientChannel.write(request);
+        }
+        ByteBuffer status = recvChunk();
+        if (status == null)
+            throw new IOException("range server closed the connection");
+        String statusString = new String(status.array(), 0, status.limit());
+        if (!RangeServer.STATUS_OK.equals(statusString))
+            throw new IOException("range request failed: " + statusString);
+        receiveChunks(outputFile);
+    }
+
+    // the next chunk into a reusable heap buffer, null when server closed the connection
+    private ByteBuffer recvChunk() throws IOException {
+        int chunkSize = recvChunkSize();
+        if (chunkSize < 0)
+            return null;
+        if (chunkBuff.capacity() < chunkSize)
+            chunkBuff = ByteBuffer.allocate(Math.max(chunkBuff.capacity() << 1, chunkSize));
+        chunkBuff.clear();
+        chunkBuff.limit(chunkSize);
+        while (chunkBuff.hasRemaining()) {
+            if (clientChannel.read(chunkBuff) < 0)
+                throw new IOException("connection closed in the middle of a chunk");
+        }
+        chunkBuff.flip();
+        return chunkBuff;
+    }
+
+    // striped: one thread per connection, chunks are written at their output offset in any order
+    private void receiveStriped(final FileChannel outputFile, int streamNum) throws IOException {
+        List<SocketChannel> stripeChannels = new ArrayList<>(streamNum);
+        stripeChannels.add(clientChannel);
+        for (int i = 1; i < streamNum; i++) {
+            stripeChannels.add(connect());
+        }
+        ExecutorService receivePool = PipelineExecutors.newStageExecutor(streamNum);
+        List<Future<Long>> stripeEnds = new ArrayList<>(streamNum);
+        for (final SocketChannel stripeChannel : stripeChannels) {
+            stripeEnds.add(receivePool.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return receiveStripe(stripeChannel, outputFile);
+                }
+            }));
+        }
+        long resultEnd = 0;
+        try {
+            for (Future<Long> stripeEnd : stripeEnds) {
+                resultEnd = Math.max(resultEnd, stripeEnd.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            receivePool.shutdown();
+        }
+        outputFile.truncate(resultEnd);
+    }
+
+    // used by one receive thread, end of its last chunk in the result file
+    private static long receiveStripe(SocketChannel stripeChannel, FileChannel outputFile) throws IOException {
+        ByteBuffer chunkHeader = ByteBuffer.allocate(12);
+        ByteBuffer stripeBuff = ByteBuffer.allocateDirect(STRIPE_BUFFER_SIZE);
+        long stripeEnd = 0;
+        while (readFully(stripeChannel, chunkHeader)) {
+            chunkHeader.flip();
+            int chunkSize = chunkHeader.getInt();
+            long position = chunkHeader.getLong();
+            long chunkEnd = position + chunkSize;
+            while (position < chunkEnd) {
+                stripeBuff.clear();
+                stripeBuff.limit((int) Math.min(STRIPE_BUFFER_SIZE, chunkEnd - position));
+                if (!readFully(stripeChannel, stripeBuff))
+                    throw new IOException("connection closed in the middle of a chunk");
+                stripeBuff.flip();
+                while (stripeBuff.hasRemaining()) {
+                    position += outputFile.write(stripeBuff, position);
+                }
+            }
+            stripeEnd = Math.max(stripeEnd, chunkEnd);
+            chunkHeader.clear();
+        }
+        stripeChannel.close();
+        return stripeEnd;
+    }
+
+    // false when the connection closed before the first byte
+    private static boolean readFully(SocketChannel socketChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (socketChannel.read(buffer) < 0) {
+                if (buffer.position() == 0)
+                    return false;
+                throw new IOException("connection closed in the middle of a chunk");
+            }
+        }
+        return true;
+    }
+
+    // zero copy: chunks are read from the socket straight into mapped windows of the result file
+    // the result size is unknown up front, so the file grows window by window and is truncated at the end
+    private void receiveIntoMappedFile(FileChannel outputFile) throws IOException {
+        long position = 0;
+        long windowStart = 0;
+        MappedByteBuffer window = null;
+        int chunkSize;
+        while ((chunkSize = recvChunkSize()) >= 0) {
+            long chunkEnd = position + chunkSize;
+            while (position < chunkEnd) {
+                if (window == null || position == windowStart + RESULT_WINDOW_SIZE) {
+                    if (window != null)
+                        FileUtil.unmap(window);
+                    windowStart = position;
+                    window = outputFile.map(FileChannel.MapMode.READ_WRITE, windowStart, RESULT_WINDOW_SIZE);
+                }
+                window.limit((int) Math.min(RESULT_WINDOW_SIZE, chunkEnd - windowStart));
+                int recvCount = clientChannel.read(window);
+                if (recvCount < 0)
+                    throw new IOException("connection closed in the middle of a chunk");
+                position += recvCount;
+            }
+        }
+        if (window != null)
+            FileUtil.unmap(window);
+        outputFile.truncate(position);
+        clientChannel.close();
+    }
+
+    // compact wire: frames are decoded into TSV rows as they arrive, straight into the result file
+    private void decodeFrames(FileChannel outputFile) throws IOException {
+        CompactResultCodec.FrameDecoder frameDecoder = new CompactResultCodec.FrameDecoder();
+        ByteBuffer frame;
+        try {
+            while ((frame = recvChunk()) != null) {
+                ByteBuffer rows = frameDecoder.decode(frame);
+                while (rows.hasRemaining()) {
+                    outputFile.write(rows);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        outputFile.truncate(outputFile.position());
+        clientChannel.close();
+    }
+
+    // split compute: operation chunks are restored as they arrive, the result is evaluated here
+    private void replayOperations(String[] args, final FileChannel outputFile) throws IOException {
+        OperationStreamReplayer replayer = new OperationStreamReplayer(args);
+        ByteBuffer chunk;
+        try {
+            while ((chunk = recvChunk()) != null) {
+                replayer.replay(chunk);
+            }
+            clientChannel.close();
+
+            replayer.evalAndSend(new ResultSink() {
+                @Override
+                public void send(ByteBuffer segment) {
+                    try {
+                        while (segment.hasRemaining()) {
+                            outputFile.write(segment);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            outputFile.truncate(outputFile.position());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
@@ -3,39 +3,81 @@ package com.alibaba.middleware.race.sync.NioSocket;
 //import org.slf4j.Logger;
 //import org.slf4j.LoggerFactory;
 
+import com.alibaba.middleware.race.sync.server2.PipelineExecutors;
+import com.alibaba.middleware.race.sync.server2.PipelineMetrics;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by will on 24/6/2017.
  */
 public class NioServer {
-    private byte FINISHED_ALL = 'F';
+    // parallel connections, > 1: key-ordered chunks are striped across them, each with its output offset
+    public static int TRANSFER_STREAM_NUM = Integer.getInteger("sync.transferStreams", 1);
+
     private byte REQUIRE_ARGS = 'A';
 //    public Logger logger = null;
     private int port;
     private String[] args;
-    private ArrayBlockingQueue<ByteBuffer> sendQueue = new ArrayBlockingQueue<ByteBuffer>(8);
+    private int streamNum;
+    private ArrayBlockingQueue<Packet> sendQueue = new ArrayBlockingQueue<Packet>(8);
+
+    // a chunk, heap bytes or a region of a file shipped with transferTo
+    private static class Packet {
+        final ByteBuffer data;
+        final FileChannel fileChannel;
+        final long position;
+        final long length;
+        // offset in the result file, used when striped
+        long outputOffset;
+
+        Packet(ByteBuffer data) {
+            this.data = data;
+            this.fileChannel = null;
+            this.position = 0;
+            this.length = data.limit();
+        }
+
+        Packet(FileChannel fileChannel, long position, long length) {
+            this.data = null;
+            this.fileChannel = fileChannel;
+            this.position = position;
+            this.length = length;
+        }
+    }
 
-    private boolean finished = false;
+    // end of a connection, by identity, so that no data chunk can be mistaken for it
+    private static final Packet FINISHED_ALL = new Packet(ByteBuffer.allocate(0));
+
+    // used by master thread, chunks are sent in output order
+    private long nextOutputOffset = 0;
+
+    private final AtomicInteger finishedStreams = new AtomicInteger(0);
+    // chunk headers included
+    private final AtomicLong sentBytes = new AtomicLong(0);
 
     private ServerSocketChannel serverChannel;
-    private SocketChannel clientChannel;
 
-    private ExecutorService serverThreadsPool = Executors.newSingleThreadExecutor();
+    private ExecutorService serverThreadsPool;
 
     public NioServer(String[] args, int port) {
 //        this.logger = LoggerFactory.getLogger(NioServer.class);
         this.port = port;
         this.args = args;
+        this.streamNum = new ArgumentsPayloadBuilder(args).streamNum();
+        this.serverThreadsPool = PipelineExecutors.newStageExecutor(streamNum);
         try {
             this.serverChannel = ServerSocketChannel.open();
             serverChannel.configureBlocking(true);
@@ -55,7 +97,7 @@ public class NioServer {
                     serverChannel.socket().bind(new InetSocketAddress(port));
 //                    logger.info("server started......");
 
-                    clientChannel = serverChannel.accept();
+                    SocketChannel clientChannel = serverChannel.accept();
                     clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
 //                    logger.info("client connected.....");
 
@@ -69,28 +111,19 @@ public class NioServer {
                         chunkSize.flip();
                         clientChannel.write(chunkSize);
                         clientChannel.write(argsBuff);
-                        while (true) {
-                            try {
-                                ByteBuffer data = sendQueue.take();
-                                if (data.limit() == 1 && data.get(0) == FINISHED_ALL) {
-                                    clientChannel.finishConnect();
-                                    clientChannel.close();
-                                    finished = true;
-                                    break;
-                                } else {
-                                    chunkSize.clear();
-//                                    logger.info("data chunk size: " + data.limit());
-                                    chunkSize.putInt(data.limit());
-                                    chunkSize.flip();
-                                    clientChannel.write(chunkSize);
-                                    clientChannel.write(data);
-                                }
 
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-//                                logger.info(e.getMessage());
-                            }
+                        // striped: the client opens the other connections once it knows the stream number
+                        for (int i = 1; i < streamNum; i++) {
+                            final SocketChannel stripeChannel = serverChannel.accept();
+                            stripeChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                            serverThreadsPool.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    sendLoop(stripeChannel);
+                                }
+                            });
                         }
+                        sendLoop(clientChannel);
                     }
 
                 } catch (IOException e) {
@@ -102,22 +135,95 @@ public class NioServer {
         });
     }
 
-    public void send(ByteBuffer data) {
+    // used by each networking thread, takes chunks until the FINISHED_ALL packet
+    private void sendLoop(SocketChannel clientChannel) {
+        ByteBuffer chunkHeader = ByteBuffer.allocate(streamNum > 1 ? 12 : 4);
+        try {
+            while (true) {
+                try {
+                    Packet packet = sendQueue.take();
+                    ByteBuffer data = packet.data;
+                    if (packet == FINISHED_ALL) {
+                        clientChannel.finishConnect();
+                        clientChannel.close();
+                        finishedStreams.incrementAndGet();
+                        break;
+                    } else {
+                        chunkHeader.clear();
+//                        logger.info("data chunk size: " + packet.length);
+                        chunkHeader.putInt((int) packet.length);
+                        if (streamNum > 1)
+                            chunkHeader.putLong(packet.outputOffset);
+                        chunkHeader.flip();
+                        long startTime = System.nanoTime();
+                        while (chunkHeader.hasRemaining()) {
+                            clientChannel.write(chunkHeader);
+                        }
+                        if (data != null) {
+                            while (data.hasRemaining()) {
+                                clientChannel.write(data);
+                            }
+                        } else {
+                            transferRegion(packet, clientChannel);
+                        }
+                        PipelineMetrics.networkSend.record(System.nanoTime() - startTime);
+                        PipelineMetrics.networkSentBytes.addAndGet(chunkHeader.limit() + packet.length);
+                        sentBytes.addAndGet(chunkHeader.limit() + packet.length);
+                    }
+
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+//                    logger.info(e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // page cache to socket, transferTo may ship less than asked for
+    private static void transferRegion(Packet packet, SocketChannel clientChannel) throws IOException {
+        long position = packet.position;
+        long end = packet.position + packet.length;
+        while (position < end) {
+            position += packet.fileChannel.transferTo(position, end - position, clientChannel);
+        }
+    }
+
+    private void enqueue(Packet packet) {
+        packet.outputOffset = nextOutputOffset;
+        nextOutputOffset += packet.length;
         try {
-            sendQueue.put(data);
+            sendQueue.put(packet);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
 
+    public void send(ByteBuffer data) {
+        enqueue(new Packet(data));
+    }
+
+    // the region must stay unchanged until finish
+    public void sendRegion(FileChannel fileChannel, long position, long length) {
+        enqueue(new Packet(fileChannel, position, length));
+    }
+
+    public long sentBytes() {
+        return sentBytes.get();
+    }
+
+    // one marker per connection
     public void finish() {
         try {
-            sendQueue.put(ByteBuffer.wrap("F".getBytes()));
+            for (int i = 0; i < streamNum; i++) {
+                sendQueue.put(FINISHED_ALL);
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
         try {
-            while (!finished) {
+            while (finishedStreams.get() < streamNum) {
                 TimeUnit.MILLISECONDS.sleep(100);
             }
             serverThreadsPool.shutdown();
@@ -125,6 +231,12 @@ public class NioServer {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        // the port is free for a RangeServer
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 }
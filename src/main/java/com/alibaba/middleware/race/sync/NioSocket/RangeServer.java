@@ -0,0 +1,263 @@
+package com.alibaba.middleware.race.sync.NioSocket;
+
+import com.alibaba.middleware.race.sync.server2.PipelineExecutors;
+import com.alibaba.middleware.race.sync.server2.PipelinedComputation;
+import com.alibaba.middleware.race.sync.server2.ResultSink;
+import com.alibaba.middleware.race.sync.server2.Unsigned;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * serves range requests of any number of clients from the restored state of the last globalComputation
+ * one selector thread does all socket io, non-blocking, queries are evaluated on queryPool
+ * a query waits while MAX_QUEUED_CHUNK_NUM chunks of its reply are queued, the heap holds no more of a slow client
+ * request: 'R', int payload length, `schema table start end` payload of ArgumentsPayloadBuilder
+ * reply: a status chunk, STATUS_OK or the reason, then TSV result chunks until the server closes
+ */
+public class RangeServer {
+    public static final byte REQUIRE_RANGE = 'R';
+    public static final String STATUS_OK = "OK";
+    private static final int MAX_PAYLOAD_LEN = 4096;
+
+    static int QUERY_WORKER_NUM = 4;
+    // chunks queued per client at most, a query thread waits while its client reads slower than eval formats
+    static int MAX_QUEUED_CHUNK_NUM = 8;
+
+    // one client, filled by a query thread, drained by the selector thread
+    private static class Connection {
+        final SocketChannel channel;
+        final ByteBuffer header = ByteBuffer.allocate(5);
+        ByteBuffer payload;
+        // size header and data of each chunk
+        final BlockingQueue<ByteBuffer> writeQueue = new ArrayBlockingQueue<>(2 * MAX_QUEUED_CHUNK_NUM);
+        // all chunks of the reply are in writeQueue
+        volatile boolean isComplete = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // true when the whole request arrived
+        boolean readRequest() throws IOException {
+            if (channel.read(payload == null ? header : payload) < 0)
+                throw new IOException("connection closed before its request");
+            if (payload == null) {
+                if (header.hasRemaining())
+                    return false;
+                header.flip();
+                int payloadLen = header.get() == REQUIRE_RANGE ? header.getInt() : -1;
+                if (payloadLen < 0 || payloadLen > MAX_PAYLOAD_LEN)
+                    throw new IOException("not a range request");
+                payload = ByteBuffer.allocate(payloadLen);
+                return readRequest();
+            }
+            return !payload.hasRemaining();
+        }
+    }
+
+    private final int port;
+    private final ExecutorService queryPool = PipelineExecutors.newStageExecutor(QUERY_WORKER_NUM);
+    // connections with newly queued chunks, their write interest is set by the selector thread
+    private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean isRunning = true;
+
+    public RangeServer(int port) {
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "range-server-selector");
+        selectorThread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+            queryPool.shutdown();
+            queryPool.awaitTermination(1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void selectLoop() {
+        try {
+            while (isRunning) {
+                selector.select();
+                Connection connection;
+                while ((connection = pendingWrites.poll()) != null) {
+                    SelectionKey key = connection.channel.keyFor(selector);
+                    if (key != null && key.isValid())
+                        key.interestOps(SelectionKey.OP_WRITE);
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.readRequest()) {
+            key.interestOps(0);
+            queryPool.execute(new RangeQuery(connection));
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer head;
+        while ((head = connection.writeQueue.peek()) != null) {
+            connection.channel.write(head);
+            // socket buffer full, write interest stays on
+            if (head.hasRemaining())
+                return;
+            connection.writeQueue.poll();
+        }
+        // complete is read before the queue is checked again, so that no chunk is left behind
+        boolean isComplete = connection.isComplete;
+        if (connection.writeQueue.isEmpty()) {
+            if (isComplete) {
+                close(key);
+            } else {
+                key.interestOps(0);
+            }
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // used by query threads, blocks while MAX_QUEUED_CHUNK_NUM chunks of the connection are not written yet
+    private void enqueueChunk(Connection connection, ByteBuffer data) {
+        ByteBuffer chunkSize = ByteBuffer.allocate(4);
+        chunkSize.putInt(data.remaining());
+        chunkSize.flip();
+        if (put(connection, chunkSize) && put(connection, data)) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    // false once the client is gone, the rest of its reply is dropped
+    private static boolean put(Connection connection, ByteBuffer buffer) {
+        try {
+            while (!connection.writeQueue.offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+                if (!connection.channel.isOpen())
+                    return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static String statusOf(String[] args) {
+        try {
+            return PipelinedComputation.isRangeResident(args[0], args[1], Unsigned.parse(args[2]), Unsigned.parse(args[3])) ?
+                    STATUS_OK : "range not resident";
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return "bad request: " + e.getMessage();
+        }
+    }
+
+    // evaluates one request, the reply is streamed as segments are formatted
+    private class RangeQuery implements Runnable {
+        final Connection connection;
+
+        RangeQuery(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            final String[] args = new ArgumentsPayloadBuilder(new String(connection.payload.array())).args;
+            String status = statusOf(args);
+            enqueueChunk(connection, ByteBuffer.wrap(status.getBytes()));
+            if (status.equals(STATUS_OK)) {
+                PipelinedComputation.evalRange(args[0], args[1], Unsigned.parse(args[2]), Unsigned.parse(args[3]),
+                        new ResultSink() {
+                            @Override
+                            public void send(ByteBuffer segment) {
+                                enqueueChunk(connection, segment);
+                            }
+                        });
+            }
+            connection.isComplete = true;
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+    }
+}
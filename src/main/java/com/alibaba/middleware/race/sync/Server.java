@@ -1,26 +1,37 @@
 package com.alibaba.middleware.race.sync;
 
 
+import com.alibaba.middleware.race.sync.NioSocket.ArgumentsPayloadBuilder;
 import com.alibaba.middleware.race.sync.NioSocket.NioServer;
+import com.alibaba.middleware.race.sync.NioSocket.RangeServer;
+import com.alibaba.middleware.race.sync.server2.FileRegionSink;
+import com.alibaba.middleware.race.sync.server2.FileUtil;
+import com.alibaba.middleware.race.sync.server2.PipelineMetrics;
 import com.alibaba.middleware.race.sync.server2.PipelinedComputation;
+import com.alibaba.middleware.race.sync.server2.ResultSink;
+import com.alibaba.middleware.race.sync.server2.ResultSinkFactory;
+import com.alibaba.middleware.race.sync.server2.Unsigned;
 //import org.slf4j.Logger;
 //import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 
-import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.putThingsIntoByteBuffer;
-
 /**
  * Created by will on 6/6/2017.
  */
 public class Server {
 //    public static Logger logger;
     private static NioServer nativeServer = null;
+    private static String schemaName;
+    private static String tableName;
     private static long start;
     private static long end;
+    private static String dataHome = Constants.DATA_HOME;
+    // -Dsync.serveRanges=true: after the primary run, a RangeServer keeps serving sub-ranges of the restored state
+    public static boolean isServingRanges = Boolean.getBoolean("sync.serveRanges");
 
     /**
      * 初始化系统属性
@@ -43,8 +54,35 @@ public class Server {
 //        logger.info("Current server time:" + System.currentTimeMillis());
 //        printArgs(args);
 //        logger.info(Constants.CODE_VERSION);
-        start = Long.valueOf(args[2]);
-        end = Long.valueOf(args[3]);
+        schemaName = args[0];
+        tableName = args[1];
+        // unsigned, keys are 0 <= x <= 2^64-1
+        start = Unsigned.parse(args[2]);
+        end = Unsigned.parse(args[3]);
+    }
+
+    // used by the loopback harness, with its own data folder and an already started server
+    public Server(String[] args, NioServer nioServer, String srcFolder) {
+        this(args);
+        nativeServer = nioServer;
+        dataHome = srcFolder;
+    }
+
+    // the client learns the wire mode from the args payload
+    // -Dsync.splitCompute=true: operation stream, -Dsync.compactWire=true [-Dsync.wireDeflate=true]: compact frames
+    // -Dsync.transferStreams=K: TSV rows striped over K connections, written by offset on the client
+    // -Dsync.zeroCopyResult=true: TSV rows, shipped from the result spool and received into a mapped result file
+    public static String[] payloadArgs(String[] args) {
+        if (PipelinedComputation.isSplitCompute)
+            return ArgumentsPayloadBuilder.withWireMode(args, ArgumentsPayloadBuilder.SPLIT_COMPUTE);
+        if (PipelinedComputation.isCompactWire)
+            return ArgumentsPayloadBuilder.withWireMode(args, PipelinedComputation.isWireDeflated ?
+                    ArgumentsPayloadBuilder.COMPACT_DEFLATE_WIRE : ArgumentsPayloadBuilder.COMPACT_WIRE);
+        if (NioServer.TRANSFER_STREAM_NUM > 1)
+            return ArgumentsPayloadBuilder.withStreams(args, NioServer.TRANSFER_STREAM_NUM);
+        if (PipelinedComputation.isZeroCopyResult)
+            return ArgumentsPayloadBuilder.withWireMode(args, ArgumentsPayloadBuilder.ZERO_COPY_RESULT);
+        return args;
     }
 
     public static void main(String[] args) {
@@ -53,33 +91,51 @@ public class Server {
 //        logger = LoggerFactory.getLogger(Server.class);
 //        logger.info("Current server time:" + System.currentTimeMillis());
 
-        nativeServer = new NioServer(args, Constants.SERVER_PORT);
+        nativeServer = new NioServer(payloadArgs(args), Constants.SERVER_PORT);
         nativeServer.start();
 
 
         try {
             new Server(args).start();
         } catch (IOException e) {
+            // e.g. a failed scan, no partial result is sent, the pools would keep the JVM alive
             e.printStackTrace();
+            System.exit(1);
         }
     }
 
     public void start() throws IOException {
-        ArrayList<String> filePathList = new ArrayList<>();
-        for (int i = 1; i < 11; i++) {
-            filePathList.add(Constants.DATA_HOME + File.separator + i + ".txt");
-        }
-        PipelinedComputation.globalComputation(filePathList, start, end);
-
-        ByteBuffer byteBuffer = ByteBuffer.allocate(40 * 1024 * 1024);
-        putThingsIntoByteBuffer(byteBuffer);
-        byteBuffer.flip();
-        Server.nativeServer.send(byteBuffer);
+        ArrayList<String> filePathList = FileUtil.listInputFiles(dataHome);
+        // segments go to sendQueue as soon as their key prefix is complete, blocks when it is full
+        // zero copy: segments of the result spool are shipped with transferTo
+        final ResultSink resultSink = new FileRegionSink() {
+            @Override
+            public void send(ByteBuffer segment) {
+                Server.nativeServer.send(segment);
+            }
+
+            @Override
+            public void sendRegion(FileChannel fileChannel, long position, long length) {
+                Server.nativeServer.sendRegion(fileChannel, position, length);
+            }
+        };
+        // only the requested table is restored, other tables are skipped while scanning
+        PipelinedComputation.globalComputation(filePathList, start, end, new ResultSinkFactory() {
+            @Override
+            public ResultSink sinkOf(String schema, String table) {
+                return schemaName.equals(schema) && tableName.equals(table) ? resultSink : null;
+            }
+        });
 //        logger.info("second phase end:" + String.valueOf(System.currentTimeMillis()));
 
         nativeServer.finish();
+        PipelinedComputation.closeResultSpool();
+        System.out.println(PipelineMetrics.report());
+        PipelinedComputation.saveCheckpoint();
+        if (isServingRanges) {
+            new RangeServer(Constants.SERVER_PORT).start();
+        }
 
-//        logger.info("size:" + PipelinedComputation.finalResultMap.size());
 //        logger.info("Send finish all package......");
     }
 }
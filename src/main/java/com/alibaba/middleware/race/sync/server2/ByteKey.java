@@ -0,0 +1,53 @@
+package com.alibaba.middleware.race.sync.server2;
+
+/**
+ * byte range used as hash key, reusable as a probe without copying
+ */
+class ByteKey {
+    byte[] bytes;
+    int offset;
+    int length;
+    private int hash;
+
+    ByteKey reset(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        int h = 1;
+        for (int i = offset; i < offset + length; i++)
+            h = 31 * h + bytes[i];
+        this.hash = h;
+        return this;
+    }
+
+    // immutable copy, safe to be stored into a map
+    ByteKey copy() {
+        byte[] copyBytes = new byte[length];
+        System.arraycopy(bytes, offset, copyBytes, 0, length);
+        return new ByteKey().reset(copyBytes, 0, length);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ByteKey))
+            return false;
+        ByteKey other = (ByteKey) obj;
+        if (other.length != length || other.hash != hash)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != other.bytes[other.offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length);
+    }
+}
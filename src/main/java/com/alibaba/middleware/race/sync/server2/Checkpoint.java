@@ -0,0 +1,280 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import com.alibaba.middleware.race.sync.Constants;
+
+import java.io.*;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.alibaba.middleware.race.sync.Constants.LINE_SPLITTER;
+import static com.alibaba.middleware.race.sync.server2.ColumnDictionary.RAW_CODE;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.RESTORE_SHARD_NUM;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.pkLowerBound;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.pkUpperBound;
+
+/**
+ * restored state of a run, persisted in MIDDLE_HOME, so that a later run only scans the appended bytes
+ * 1st: range and per-file line-aligned offsets, with a crc of the bytes right before each offset
+ * 2nd: per table: name, column layout, dictionaries, and the live rows of every shard in varint encoding
+ * only valid for the same range, the same table selection, and input files which only grew at their ends
+ */
+class Checkpoint {
+    private static final int MAGIC = 0x59434351;
+    private static final String FILE_NAME = "restore.checkpoint";
+    // bytes before the offset covered by the crc
+    private static final int FINGERPRINT_LEN = 4096;
+
+    private static File checkpointFile() {
+        return new File(Constants.MIDDLE_HOME + File.separator + FILE_NAME);
+    }
+
+    // crc of [offset - FINGERPRINT_LEN, offset)
+    static long fingerprintOf(RandomAccessFile file, long offset) throws IOException {
+        int len = (int) Math.min(FINGERPRINT_LEN, offset);
+        byte[] bytes = new byte[len];
+        file.seek(offset - len);
+        file.readFully(bytes);
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+        return crc32.getValue();
+    }
+
+    // end of the last complete line in [0, scannedEnd), a trailing partial line is scanned again next time
+    private static long lineEndOf(RandomAccessFile file, long scannedEnd) throws IOException {
+        byte[] block = new byte[FINGERPRINT_LEN];
+        long blockEnd = scannedEnd;
+        while (blockEnd > 0) {
+            int len = (int) Math.min(block.length, blockEnd);
+            file.seek(blockEnd - len);
+            file.readFully(block, 0, len);
+            for (int i = len - 1; i >= 0; i--) {
+                if (block[i] == LINE_SPLITTER)
+                    return blockEnd - len + i + 1;
+            }
+            blockEnd -= len;
+        }
+        return 0;
+    }
+
+    private static void writeVarLong(DataOutputStream outputStream, long value) throws IOException {
+        // zigzag, so that the ABSENT / NULL_VALUE sentinels stay short as well
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            outputStream.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        outputStream.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(DataInputStream inputStream) throws IOException {
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = inputStream.readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static void writeBytes(DataOutputStream outputStream, byte[] bytes) throws IOException {
+        writeVarLong(outputStream, bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(inputStream)];
+        inputStream.readFully(bytes);
+        return bytes;
+    }
+
+    // used by master thread, after all restore finished, scannedEnds: file sizes seen by this run
+    static void save(List<String> srcFilePaths, long[] scannedEnds) {
+        File checkpoint = checkpointFile();
+        File tmpFile = new File(checkpoint.getPath() + ".tmp");
+        checkpoint.getParentFile().mkdirs();
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeLong(pkLowerBound);
+            outputStream.writeLong(pkUpperBound);
+            outputStream.writeInt(RESTORE_SHARD_NUM);
+
+            // 1st: input files
+            outputStream.writeInt(srcFilePaths.size());
+            for (int i = 0; i < srcFilePaths.size(); i++) {
+                try (RandomAccessFile file = new RandomAccessFile(srcFilePaths.get(i), "r")) {
+                    long offset = lineEndOf(file, scannedEnds[i]);
+                    outputStream.writeUTF(new File(srcFilePaths.get(i)).getAbsolutePath());
+                    outputStream.writeLong(offset);
+                    outputStream.writeLong(fingerprintOf(file, offset));
+                }
+            }
+
+            // 2nd: tables, in table id order
+            TableSchema[] tables = TableRegistry.allTables();
+            outputStream.writeInt(tables.length);
+            for (TableSchema tableSchema : tables) {
+                saveTable(outputStream, tableSchema);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (!tmpFile.renameTo(checkpoint)) {
+            checkpoint.delete();
+            tmpFile.renameTo(checkpoint);
+        }
+    }
+
+    private static void saveTable(DataOutputStream outputStream, TableSchema tableSchema) throws IOException {
+        TableSchema.ColumnLayout layout = tableSchema.layout();
+        writeBytes(outputStream, tableSchema.nameBytes);
+        outputStream.writeInt(tableSchema.keyJumpLen - 3);
+        outputStream.writeBoolean(tableSchema.isSelected);
+        outputStream.writeInt(layout.columnNum());
+        for (int i = 0; i < layout.columnNum(); i++) {
+            writeBytes(outputStream, layout.descriptors[i]);
+            ColumnDictionary dictionary = layout.dictionaries[i];
+            if (dictionary != null) {
+                outputStream.writeBoolean(dictionary.isRaw());
+                outputStream.writeInt(dictionary.codeNum());
+                for (int code = 0; code < dictionary.codeNum(); code++) {
+                    writeBytes(outputStream, dictionary.decode((short) code));
+                }
+            }
+        }
+        outputStream.writeInt(layout.isComplete() ? layout.outputOrder.length : -1);
+        if (layout.isComplete()) {
+            for (int index : layout.outputOrder) {
+                outputStream.writeInt(index);
+            }
+        }
+        if (!tableSchema.isSelected)
+            return;
+
+        // live rows of each shard, key as delta to the previous live key
+        long[] values = new long[layout.columnNum()];
+        byte[][] rawValues = new byte[layout.columnNum()][];
+        for (RestoreShard shard : tableSchema.restoreEngine.shards) {
+            ShardRowStore store = shard.store;
+            int liveNum = 0;
+            for (int slot = store.nextLiveSlot(0, store.capacity); slot != -1; slot = store.nextLiveSlot(slot + 1, store.capacity)) {
+                liveNum++;
+            }
+            outputStream.writeInt(liveNum);
+            long prevKey = 0;
+            for (int slot = store.nextLiveSlot(0, store.capacity); slot != -1; slot = store.nextLiveSlot(slot + 1, store.capacity)) {
+                writeVarLong(outputStream, store.keyOf(slot) - prevKey);
+                prevKey = store.keyOf(slot);
+                store.readColumns(slot, values, rawValues);
+                for (int i = 0; i < values.length; i++) {
+                    writeVarLong(outputStream, values[i]);
+                    if (layout.isStringColumn[i] && values[i] == RAW_CODE)
+                        writeBytes(outputStream, rawValues[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * used by master thread, after TableRegistry.init
+     * returns the offset to start scanning from for each file, all 0 without a usable checkpoint
+     */
+    static long[] load(List<String> srcFilePaths, ResultSinkFactory resultSinkFactory) {
+        long[] startOffsets = new long[srcFilePaths.size()];
+        File checkpoint = checkpointFile();
+        if (!checkpoint.exists())
+            return startOffsets;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint), 1 << 20))) {
+            if (inputStream.readInt() != MAGIC || inputStream.readLong() != pkLowerBound ||
+                    inputStream.readLong() != pkUpperBound || inputStream.readInt() != RESTORE_SHARD_NUM)
+                return startOffsets;
+
+            // 1st: checkpointed files must be a prefix of the input, each only grown at its end
+            int fileNum = inputStream.readInt();
+            if (fileNum > srcFilePaths.size())
+                return startOffsets;
+            long[] offsets = new long[srcFilePaths.size()];
+            for (int i = 0; i < fileNum; i++) {
+                File srcFile = new File(srcFilePaths.get(i));
+                String path = inputStream.readUTF();
+                long offset = inputStream.readLong();
+                long fingerprint = inputStream.readLong();
+                if (!path.equals(srcFile.getAbsolutePath()) || srcFile.length() < offset)
+                    return startOffsets;
+                try (RandomAccessFile file = new RandomAccessFile(srcFile, "r")) {
+                    if (fingerprintOf(file, offset) != fingerprint)
+                        return startOffsets;
+                }
+                offsets[i] = offset;
+            }
+
+            // 2nd: tables, a different table selection needs a full replay
+            int tableNum = inputStream.readInt();
+            for (int i = 0; i < tableNum; i++) {
+                if (!loadTable(inputStream, i, resultSinkFactory)) {
+                    TableRegistry.init(resultSinkFactory);
+                    return startOffsets;
+                }
+            }
+            return offsets;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            TableRegistry.init(resultSinkFactory);
+            return startOffsets;
+        }
+    }
+
+    private static boolean loadTable(DataInputStream inputStream, int tableId, ResultSinkFactory resultSinkFactory) throws IOException {
+        byte[] nameBytes = readBytes(inputStream);
+        int keyDescriptorLen = inputStream.readInt();
+        boolean isSelected = inputStream.readBoolean();
+        TableSchema tableSchema = TableRegistry.restore(nameBytes, keyDescriptorLen);
+        if (tableSchema.tableId != tableId || tableSchema.isSelected != isSelected)
+            return false;
+
+        int columnNum = inputStream.readInt();
+        byte[][] descriptors = new byte[columnNum][];
+        ColumnDictionary[] dictionaries = new ColumnDictionary[columnNum];
+        for (int i = 0; i < columnNum; i++) {
+            descriptors[i] = readBytes(inputStream);
+            if (TableSchema.isStringDescriptor(descriptors[i])) {
+                boolean isRaw = inputStream.readBoolean();
+                byte[][] codeBytes = new byte[inputStream.readInt()][];
+                for (int code = 0; code < codeBytes.length; code++) {
+                    codeBytes[code] = readBytes(inputStream);
+                }
+                dictionaries[i] = ColumnDictionary.restore(codeBytes, isRaw);
+            }
+        }
+        int outputOrderLen = inputStream.readInt();
+        int[] outputOrder = outputOrderLen == -1 ? null : new int[outputOrderLen];
+        for (int i = 0; i < outputOrderLen; i++) {
+            outputOrder[i] = inputStream.readInt();
+        }
+        tableSchema.restoreLayout(descriptors, dictionaries, outputOrder);
+        if (!isSelected)
+            return true;
+
+        long[] values = new long[columnNum];
+        byte[][] rawValues = new byte[columnNum][];
+        for (RestoreShard shard : tableSchema.restoreEngine.shards) {
+            ShardRowStore store = shard.store;
+            int liveNum = inputStream.readInt();
+            long key = 0;
+            for (int row = 0; row < liveNum; row++) {
+                key += readVarLong(inputStream);
+                int slot = store.slotOf(key);
+                for (int i = 0; i < columnNum; i++) {
+                    values[i] = readVarLong(inputStream);
+                    rawValues[i] = dictionaries[i] != null && values[i] == RAW_CODE ? readBytes(inputStream) : null;
+                }
+                store.writeColumns(slot, values, rawValues, false);
+                store.setLive(slot);
+            }
+        }
+        return true;
+    }
+
+}
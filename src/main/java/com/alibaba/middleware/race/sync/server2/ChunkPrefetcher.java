@@ -0,0 +1,103 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.mediatorTasks;
+
+/**
+ * used by the master thread, walks the chunks of all input files in order
+ * the next PREFETCH_CHUNK_NUM chunks are mapped and loaded on prefetch threads, across file boundaries,
+ * so that page faults overlap with the transform of the current chunk
+ */
+class ChunkPrefetcher {
+    // deepened by PipelineTuning while the mediator starves
+    static int PREFETCH_CHUNK_NUM = 4;
+    private static int PREFETCH_WORKER_NUM = 2;
+
+    private static class ChunkRef {
+        final MmapReader mmapReader;
+        final int chunkIndex;
+
+        ChunkRef(MmapReader mmapReader, int chunkIndex) {
+            this.mmapReader = mmapReader;
+            this.chunkIndex = chunkIndex;
+        }
+    }
+
+    private static class PrefetchTask implements Callable<MappedByteBuffer> {
+        final ChunkRef chunkRef;
+
+        PrefetchTask(ChunkRef chunkRef) {
+            this.chunkRef = chunkRef;
+        }
+
+        @Override
+        public MappedByteBuffer call() throws IOException {
+            return chunkRef.mmapReader.mapChunk(chunkRef.chunkIndex);
+        }
+    }
+
+    // platform threads even with virtual threads: a page fault of load blocks the carrier, not just the task
+    private final ExecutorService prefetchPool = Executors.newFixedThreadPool(PREFETCH_WORKER_NUM);
+    private final List<ChunkRef> chunkRefs = new ArrayList<>();
+    private final List<MmapReader> mmapReaders = new ArrayList<>();
+
+    ChunkPrefetcher(List<String> srcFilePaths, long[] startOffsets) throws IOException {
+        for (int i = 0; i < srcFilePaths.size(); i++) {
+            MmapReader mmapReader = new MmapReader(srcFilePaths.get(i), startOffsets[i]);
+            mmapReaders.add(mmapReader);
+            for (int j = 0; j < mmapReader.chunkNum; j++) {
+                chunkRefs.add(new ChunkRef(mmapReader, j));
+            }
+        }
+    }
+
+    // file sizes as seen by this run, appends after construction are left for the next run
+    long[] scannedEnds() {
+        long[] scannedEnds = new long[mmapReaders.size()];
+        for (int i = 0; i < scannedEnds.length; i++) {
+            scannedEnds[i] = mmapReaders.get(i).fileSize;
+        }
+        return scannedEnds;
+    }
+
+    void fetchChunks() {
+        Queue<Future<MappedByteBuffer>> prefetchedChunks = new ArrayDeque<>(PREFETCH_CHUNK_NUM);
+        int nextPrefetch = 0;
+        for (int i = 0; i < chunkRefs.size(); i++) {
+            // 1st: keep the window of prefetched chunks full
+            while (nextPrefetch < chunkRefs.size() && nextPrefetch <= i + PREFETCH_CHUNK_NUM) {
+                prefetchedChunks.add(prefetchPool.submit(new PrefetchTask(chunkRefs.get(nextPrefetch))));
+                nextPrefetch++;
+            }
+
+            // 2nd: hand over in order, blocks while the mediator is busy
+            ChunkRef chunkRef = chunkRefs.get(i);
+            try {
+                MappedByteBuffer mappedByteBuffer = prefetchedChunks.poll().get();
+                PipelineMetrics.mediatorOccupancy.record(mediatorTasks.size());
+                long startTime = System.nanoTime();
+                mediatorTasks.put(chunkRef.mmapReader.mediatorTaskOf(chunkRef.chunkIndex, mappedByteBuffer));
+                PipelineMetrics.mediatorPutWait.record(System.nanoTime() - startTime);
+                PipelineTuning.adapt();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        prefetchPool.shutdown();
+        for (MmapReader mmapReader : mmapReaders) {
+            mmapReader.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import com.alibaba.middleware.race.sync.Constants;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.CHUNK_SIZE;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.WORK_NUM;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.pkLowerBound;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.pkUpperBound;
+
+/**
+ * chunk-level summary of one input file, persisted as a sidecar file in MIDDLE_HOME
+ * each sub-chunk (one FileTransformTask) records min/max touched primary key and its op mix
+ */
+class ChunkSummaryIndex {
+    private static final int MAGIC = 0x59434849;
+    private static final String SUFFIX = ".chunk_idx";
+
+    private final String srcFilePath;
+    private final long fileLength;
+    private final long lastModified;
+    // slices start from here, see Checkpoint
+    private final long startOffset;
+
+    private final long[] minKeys;
+    private final long[] maxKeys;
+    private final int[] insertNums;
+    private final int[] updateNums;
+    private final int[] deleteNums;
+
+    // true: loaded from sidecar, used for skipping; false: being built by this run
+    private boolean isValid = false;
+    // chunks whose slices are not all finished, chunks finish out of order
+    private final AtomicInteger pendingChunkNum;
+    // a slice failed to scan, the index is incomplete and never persisted
+    private volatile boolean hasFailedSlice = false;
+
+    private ChunkSummaryIndex(String srcFilePath, long fileLength, long lastModified, long startOffset, int sliceNum) {
+        this.srcFilePath = srcFilePath;
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.startOffset = startOffset;
+        this.minKeys = new long[sliceNum];
+        this.maxKeys = new long[sliceNum];
+        this.insertNums = new int[sliceNum];
+        this.updateNums = new int[sliceNum];
+        this.deleteNums = new int[sliceNum];
+        this.pendingChunkNum = new AtomicInteger(sliceNum / WORK_NUM);
+    }
+
+    private static File sidecarFile(String srcFilePath) {
+        return new File(Constants.MIDDLE_HOME + File.separator + new File(srcFilePath).getName() + SUFFIX);
+    }
+
+    // used by MmapReader, fallback to a fresh index when the sidecar is missing or stale
+    static ChunkSummaryIndex load(String srcFilePath, long startOffset, int chunkNum) {
+        File srcFile = new File(srcFilePath);
+        ChunkSummaryIndex index = new ChunkSummaryIndex(srcFile.getAbsolutePath(), srcFile.length(),
+                srcFile.lastModified(), startOffset, chunkNum * WORK_NUM);
+
+        File sidecar = sidecarFile(srcFilePath);
+        if (!sidecar.exists())
+            return index;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (inputStream.readInt() != MAGIC || !inputStream.readUTF().equals(index.srcFilePath) ||
+                    inputStream.readLong() != index.fileLength || inputStream.readLong() != index.lastModified ||
+                    inputStream.readLong() != index.startOffset ||
+                    inputStream.readInt() != CHUNK_SIZE || inputStream.readInt() != WORK_NUM ||
+                    inputStream.readInt() != index.minKeys.length)
+                return index;
+            for (int i = 0; i < index.minKeys.length; i++) {
+                index.minKeys[i] = inputStream.readLong();
+                index.maxKeys[i] = inputStream.readLong();
+                index.insertNums[i] = inputStream.readInt();
+                index.updateNums[i] = inputStream.readInt();
+                index.deleteNums[i] = inputStream.readInt();
+            }
+            index.isValid = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return index;
+    }
+
+    boolean isValid() {
+        return isValid;
+    }
+
+    // open range (pkLowerBound, pkUpperBound), same as isKeyInRange
+    boolean isSliceRelevant(int sliceIndex) {
+        if (!isValid)
+            return true;
+        if (insertNums[sliceIndex] + updateNums[sliceIndex] + deleteNums[sliceIndex] == 0)
+            return false;
+        return Unsigned.isLess(pkLowerBound, maxKeys[sliceIndex]) && Unsigned.isLess(minKeys[sliceIndex], pkUpperBound);
+    }
+
+    boolean isChunkRelevant(int chunkIndex) {
+        for (int i = chunkIndex * WORK_NUM; i < (chunkIndex + 1) * WORK_NUM; i++) {
+            if (isSliceRelevant(i))
+                return true;
+        }
+        return false;
+    }
+
+    // used by transform thread pool, each slice written by exactly one task
+    void record(int sliceIndex, long minKey, long maxKey, int insertNum, int updateNum, int deleteNum) {
+        if (isValid)
+            return;
+        minKeys[sliceIndex] = minKey;
+        maxKeys[sliceIndex] = maxKey;
+        insertNums[sliceIndex] = insertNum;
+        updateNums[sliceIndex] = updateNum;
+        deleteNums[sliceIndex] = deleteNum;
+    }
+
+    // used by transform thread pool, before the chunk of the slice is done
+    void sliceFailed() {
+        hasFailedSlice = true;
+    }
+
+    // used by transform thread pool or mediator thread, once per chunk, the last one persists
+    void chunkDone() {
+        if (pendingChunkNum.decrementAndGet() == 0) {
+            persist();
+        }
+    }
+
+    // after all slices of the file finished
+    private void persist() {
+        if (isValid || hasFailedSlice)
+            return;
+        File sidecar = sidecarFile(srcFilePath);
+        File tmpFile = new File(sidecar.getPath() + ".tmp");
+        sidecar.getParentFile().mkdirs();
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeUTF(srcFilePath);
+            outputStream.writeLong(fileLength);
+            outputStream.writeLong(lastModified);
+            outputStream.writeLong(startOffset);
+            outputStream.writeInt(CHUNK_SIZE);
+            outputStream.writeInt(WORK_NUM);
+            outputStream.writeInt(minKeys.length);
+            for (int i = 0; i < minKeys.length; i++) {
+                outputStream.writeLong(minKeys[i]);
+                outputStream.writeLong(maxKeys[i]);
+                outputStream.writeInt(insertNums[i]);
+                outputStream.writeInt(updateNums[i]);
+                outputStream.writeInt(deleteNums[i]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (!tmpFile.renameTo(sidecar)) {
+            sidecar.delete();
+            tmpFile.renameTo(sidecar);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * per-column string dictionary of one TableSchema, built while scanning and shared by all RecordScanner workers
+ * lookups are lock-free reads on a ConcurrentHashMap, only a miss takes the per-column lock
+ * once a column exceeds MAX_CODE_NUM distinct values, new values fall back to raw byte storage
+ */
+public class ColumnDictionary {
+    public static final short RAW_CODE = -2;
+    static final int MAX_CODE_NUM = Short.MAX_VALUE;
+
+    private static final ThreadLocal<ByteKey> probeKey = new ThreadLocal<ByteKey>() {
+        @Override
+        protected ByteKey initialValue() {
+            return new ByteKey();
+        }
+    };
+
+    private final ConcurrentHashMap<ByteKey, Short> codeMap = new ConcurrentHashMap<>(256, 0.75f, 16);
+    private volatile byte[][] codeBytes = new byte[64][];
+    private volatile boolean isRaw = false;
+
+    // used by transform thread pool, byteBuffer is a heap buffer in [0, limit)
+    public short encode(ByteBuffer byteBuffer) {
+        ByteKey probe = probeKey.get().reset(byteBuffer.array(), byteBuffer.arrayOffset(), byteBuffer.limit());
+        Short code = codeMap.get(probe);
+        if (code != null)
+            return code;
+        if (isRaw)
+            return RAW_CODE;
+        return addCode(probe);
+    }
+
+    private synchronized short addCode(ByteKey probe) {
+        Short code = codeMap.get(probe);
+        if (code != null)
+            return code;
+        int nextCode = codeMap.size();
+        if (nextCode >= MAX_CODE_NUM) {
+            isRaw = true;
+            return RAW_CODE;
+        }
+
+        ByteKey key = probe.copy();
+        byte[][] table = codeBytes;
+        if (nextCode == table.length) {
+            table = Arrays.copyOf(table, table.length << 1);
+        }
+        table[nextCode] = key.bytes;
+        codeBytes = table;
+        codeMap.put(key, (short) nextCode);
+        return (short) nextCode;
+    }
+
+    // used by Checkpoint, codes are kept, so that restored rows stay valid
+    static ColumnDictionary restore(byte[][] codeBytes, boolean isRaw) {
+        ColumnDictionary dictionary = new ColumnDictionary();
+        for (byte[] bytes : codeBytes) {
+            dictionary.addCode(new ByteKey().reset(bytes, 0, bytes.length));
+        }
+        dictionary.isRaw = isRaw;
+        return dictionary;
+    }
+
+    int codeNum() {
+        return codeMap.size();
+    }
+
+    // used by eval, and by OperationStreamWriter for codes already handed out, which are published with codeBytes
+    public byte[] decode(short code) {
+        return codeBytes[code];
+    }
+
+    public boolean isRaw() {
+        return isRaw;
+    }
+}
@@ -0,0 +1,288 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.alibaba.middleware.race.sync.server2.ColumnDictionary.RAW_CODE;
+import static com.alibaba.middleware.race.sync.server2.operations.NonDeleteOperation.ABSENT;
+import static com.alibaba.middleware.race.sync.server2.operations.NonDeleteOperation.NULL_VALUE;
+
+/**
+ * compact result wire: one binary frame per eval segment instead of TSV rows, decoded to TSV by the client
+ * header frame: once per table, column types in output order and the string dictionaries
+ * row frame: row num, then per row the key (zigzag varint for the first, varint delta after), columns in output order
+ * column: varint, 0 absent, 1 NULL (numeric) or raw bytes (string), otherwise value + 2 or dictionary code + 2
+ * deflated row frame: the row frame body through Deflater.BEST_SPEED, compressed on the eval workers
+ */
+public final class CompactResultCodec {
+    static final byte HEADER_FRAME = 'H';
+    static final byte ROW_FRAME = 'R';
+    static final byte DEFLATED_ROW_FRAME = 'Z';
+
+    private static final int ABSENT_TAG = 0;
+    private static final int NULL_OR_RAW_TAG = 1;
+    private static final int VALUE_BASE = 2;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private CompactResultCodec() {
+    }
+
+    private static class FrameWriter {
+        byte[] bytes;
+        int position = 0;
+
+        FrameWriter(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void ensureRemaining(int byteNum) {
+            if (bytes.length - position < byteNum)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, position + byteNum));
+        }
+
+        void putByte(int value) {
+            ensureRemaining(1);
+            bytes[position++] = (byte) value;
+        }
+
+        // unsigned, 7 bits per byte, low bits first
+        void putVarint(long value) {
+            ensureRemaining(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[position++] = (byte) value;
+        }
+
+        void putBytes(byte[] value) {
+            putVarint(value.length);
+            ensureRemaining(value.length);
+            System.arraycopy(value, 0, bytes, position, value.length);
+            position += value.length;
+        }
+    }
+
+    private static long getVarint(ByteBuffer frame) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        while ((b = frame.get()) < 0) {
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value | (long) b << shift;
+    }
+
+    // used by master thread, after all scanning finished, before the first segment of the table
+    static ByteBuffer headerOf(TableSchema tableSchema) {
+        FrameWriter frameWriter = new FrameWriter(4096);
+        frameWriter.putByte(HEADER_FRAME);
+        int[] outputOrder = tableSchema.outputOrder();
+        frameWriter.putVarint(outputOrder.length);
+        for (int index : outputOrder) {
+            if (!tableSchema.isStringColumn(index)) {
+                frameWriter.putByte(0);
+                continue;
+            }
+            frameWriter.putByte(1);
+            ColumnDictionary dictionary = tableSchema.dictionaryOf(index);
+            frameWriter.putVarint(dictionary.codeNum());
+            for (int code = 0; code < dictionary.codeNum(); code++) {
+                frameWriter.putBytes(dictionary.decode((short) code));
+            }
+        }
+        return ByteBuffer.wrap(frameWriter.bytes, 0, frameWriter.position);
+    }
+
+    // used by eval workers, live rows of [startSlot, endSlot), empty if there is none
+    static ByteBuffer segmentOf(TableSchema tableSchema, ShardRowStore store, int startSlot, int endSlot, boolean isDeflated) {
+        int columnNum = tableSchema.columnNum();
+        int[] outputOrder = tableSchema.outputOrder();
+        boolean[] isStringColumn = new boolean[columnNum];
+        for (int i = 0; i < columnNum; i++) {
+            isStringColumn[i] = tableSchema.isStringColumn(i);
+        }
+        long[] values = new long[columnNum];
+        byte[][] rawValues = new byte[columnNum][];
+
+        // 1st: rows, the row num goes in front when the frame is assembled
+        FrameWriter rowWriter = new FrameWriter(4096);
+        int rowNum = 0;
+        long prevKey = 0;
+        for (int slot = store.nextLiveSlot(startSlot, endSlot); slot != -1;
+             slot = store.nextLiveSlot(slot + 1, endSlot)) {
+            long key = store.keyOf(slot);
+            rowWriter.putVarint(rowNum == 0 ? (key << 1) ^ (key >> 63) : key - prevKey);
+            prevKey = key;
+            rowNum++;
+            store.readColumns(slot, values, rawValues);
+            for (int index : outputOrder) {
+                long value = values[index];
+                if (value == ABSENT) {
+                    rowWriter.putVarint(ABSENT_TAG);
+                } else if (isStringColumn[index] && value == RAW_CODE) {
+                    rowWriter.putVarint(NULL_OR_RAW_TAG);
+                    rowWriter.putBytes(rawValues[index]);
+                } else if (value == NULL_VALUE) {
+                    rowWriter.putVarint(NULL_OR_RAW_TAG);
+                } else {
+                    rowWriter.putVarint(value + VALUE_BASE);
+                }
+            }
+        }
+        if (rowNum == 0)
+            return ByteBuffer.allocate(0);
+
+        // 2nd: frame type, row num, rows, the body optionally deflated
+        FrameWriter frameWriter = new FrameWriter(rowWriter.position + 16);
+        frameWriter.putByte(isDeflated ? DEFLATED_ROW_FRAME : ROW_FRAME);
+        FrameWriter bodyWriter = isDeflated ? new FrameWriter(rowWriter.position + 8) : frameWriter;
+        bodyWriter.putVarint(rowNum);
+        bodyWriter.ensureRemaining(rowWriter.position);
+        System.arraycopy(rowWriter.bytes, 0, bodyWriter.bytes, bodyWriter.position, rowWriter.position);
+        bodyWriter.position += rowWriter.position;
+        if (isDeflated) {
+            frameWriter.putVarint(bodyWriter.position);
+            deflate(bodyWriter, frameWriter);
+        }
+        return ByteBuffer.wrap(frameWriter.bytes, 0, frameWriter.position);
+    }
+
+    private static void deflate(FrameWriter input, FrameWriter output) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(input.bytes, 0, input.position);
+        deflater.finish();
+        while (!deflater.finished()) {
+            output.ensureRemaining(4096);
+            output.position += deflater.deflate(output.bytes, output.position, output.bytes.length - output.position);
+        }
+    }
+
+    /**
+     * client side, frames of one table in the order they were sent, into TSV rows as eval would have written them
+     */
+    public static class FrameDecoder {
+        private static final byte[] NULL_BYTES = "NULL".getBytes();
+
+        private boolean[] isStringColumn = new boolean[0];
+        private byte[][][] dictionaries = new byte[0][][];
+        private final Inflater inflater = new Inflater();
+        private byte[] inflated = new byte[64 * 1024];
+        private byte[] tsv = new byte[64 * 1024];
+        private int position;
+
+        private void ensureRemaining(int byteNum) {
+            if (tsv.length - position < byteNum)
+                tsv = Arrays.copyOf(tsv, Math.max(tsv.length << 1, position + byteNum));
+        }
+
+        private void putBytes(byte[] value, int offset, int length) {
+            ensureRemaining(length + 1);
+            System.arraycopy(value, offset, tsv, position, length);
+            position += length;
+            tsv[position++] = '\t';
+        }
+
+        // unsigned, as InsertOperation prints it
+        private void putLong(long value) {
+            int digitNum = Unsigned.digitNum(value);
+            ensureRemaining(digitNum + 1);
+            Unsigned.putDigits(value, tsv, position, digitNum);
+            position += digitNum;
+            tsv[position++] = '\t';
+        }
+
+        private void readHeader(ByteBuffer frame) {
+            int columnNum = (int) getVarint(frame);
+            isStringColumn = new boolean[columnNum];
+            dictionaries = new byte[columnNum][][];
+            for (int i = 0; i < columnNum; i++) {
+                isStringColumn[i] = frame.get() == 1;
+                if (!isStringColumn[i])
+                    continue;
+                byte[][] dictionary = new byte[(int) getVarint(frame)][];
+                for (int code = 0; code < dictionary.length; code++) {
+                    dictionary[code] = new byte[(int) getVarint(frame)];
+                    frame.get(dictionary[code]);
+                }
+                dictionaries[i] = dictionary;
+            }
+        }
+
+        private ByteBuffer inflate(ByteBuffer frame) throws DataFormatException {
+            int bodyLen = (int) getVarint(frame);
+            if (inflated.length < bodyLen)
+                inflated = new byte[Math.max(inflated.length << 1, bodyLen)];
+            inflater.reset();
+            inflater.setInput(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            int inflatedLen = 0;
+            while (inflatedLen < bodyLen) {
+                int len = inflater.inflate(inflated, inflatedLen, bodyLen - inflatedLen);
+                if (len == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new DataFormatException("deflated row frame shorter than " + bodyLen);
+                inflatedLen += len;
+            }
+            return ByteBuffer.wrap(inflated, 0, bodyLen);
+        }
+
+        private void readRows(ByteBuffer body) {
+            int rowNum = (int) getVarint(body);
+            long key = 0;
+            for (int row = 0; row < rowNum; row++) {
+                long keyVarint = getVarint(body);
+                key = row == 0 ? (keyVarint >>> 1) ^ -(keyVarint & 1) : key + keyVarint;
+                putLong(key);
+                for (int i = 0; i < isStringColumn.length; i++) {
+                    long tag = getVarint(body);
+                    if (tag == ABSENT_TAG) {
+                        ensureRemaining(1);
+                        tsv[position++] = '\t';
+                    } else if (tag != NULL_OR_RAW_TAG) {
+                        if (isStringColumn[i]) {
+                            byte[] value = dictionaries[i][(int) (tag - VALUE_BASE)];
+                            putBytes(value, 0, value.length);
+                        } else {
+                            putLong(tag - VALUE_BASE);
+                        }
+                    } else if (isStringColumn[i]) {
+                        int len = (int) getVarint(body);
+                        ensureRemaining(len + 1);
+                        body.get(tsv, position, len);
+                        position += len;
+                        tsv[position++] = '\t';
+                    } else {
+                        putBytes(NULL_BYTES, 0, NULL_BYTES.length);
+                    }
+                }
+                tsv[position - 1] = '\n';
+            }
+        }
+
+        // used by the receiving thread, frame is a heap buffer, the result is valid until the next call
+        public ByteBuffer decode(ByteBuffer frame) throws DataFormatException {
+            position = 0;
+            byte frameType = frame.get();
+            if (frameType == HEADER_FRAME) {
+                readHeader(frame);
+            } else if (frameType == ROW_FRAME) {
+                readRows(frame);
+            } else if (frameType == DEFLATED_ROW_FRAME) {
+                readRows(inflate(frame));
+            } else {
+                throw new DataFormatException("unknown frame type " + frameType);
+            }
+            return ByteBuffer.wrap(tsv, 0, position);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.alibaba.middleware.race.sync.Constants.FILED_SPLITTER;
+
+/**
+ * compiled from the column descriptors of one TableSchema layout
+ * a byte-indexed decision tree over the column descriptors, e.g. `first_name:2:0`,
+ * each node peeks one distinguishing byte, so a column name is resolved with a few array loads
+ */
+class FieldNameMatcher {
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+    static final int NO_MATCH = -1;
+
+    // node i peeks byte at offset peekOffsets[i] after `|`, then jumps by transitions[i << 8 | byte]
+    // transition >= 0: next node, < 0: leaf of field index -(transition + 1)
+    private final int[] peekOffsets;
+    private final int[] transitions;
+    private final int rootLeaf;
+
+    private ArrayList<Integer> peekOffsetList = new ArrayList<>();
+    private ArrayList<int[]> transitionList = new ArrayList<>();
+
+    // descriptors[i]: e.g. `first_name:2:0` of field index i
+    FieldNameMatcher(byte[][] descriptors) {
+        List<byte[]> names = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < descriptors.length; i++) {
+            names.add(descriptors[i]);
+            indexes.add(i);
+        }
+
+        int root = names.isEmpty() ? UNKNOWN : build(names, indexes);
+        rootLeaf = root < 0 ? root : 0;
+        peekOffsets = new int[peekOffsetList.size()];
+        transitions = new int[peekOffsetList.size() << 8];
+        for (int i = 0; i < peekOffsets.length; i++) {
+            peekOffsets[i] = peekOffsetList.get(i);
+            System.arraycopy(transitionList.get(i), 0, transitions, i << 8, 256);
+        }
+        peekOffsetList = null;
+        transitionList = null;
+    }
+
+    // byte at offset, the `|` right after the name is part of the descriptor
+    private static int byteAt(byte[] name, int offset) {
+        return (offset < name.length ? name[offset] : FILED_SPLITTER) & 0xFF;
+    }
+
+    private int build(List<byte[]> names, List<Integer> indexes) {
+        if (names.size() == 1)
+            return -(indexes.get(0) + 1);
+
+        // 1st: pick the offset splitting candidates into most groups, never peek beyond the shortest `|`
+        int minLen = Integer.MAX_VALUE;
+        for (byte[] name : names) {
+            minLen = Math.min(minLen, name.length);
+        }
+        int bestOffset = -1;
+        int bestGroupNum = 1;
+        for (int offset = 0; offset <= minLen; offset++) {
+            boolean[] seen = new boolean[256];
+            int groupNum = 0;
+            for (byte[] name : names) {
+                int b = byteAt(name, offset);
+                if (!seen[b]) {
+                    seen[b] = true;
+                    groupNum++;
+                }
+            }
+            if (groupNum > bestGroupNum) {
+                bestGroupNum = groupNum;
+                bestOffset = offset;
+            }
+        }
+        if (bestOffset == -1)
+            throw new IllegalStateException("duplicate column descriptors in schema");
+
+        // 2nd: register node, then recurse into each group
+        int nodeId = peekOffsetList.size();
+        int[] nodeTransitions = new int[256];
+        Arrays.fill(nodeTransitions, UNKNOWN);
+        peekOffsetList.add(bestOffset);
+        transitionList.add(nodeTransitions);
+
+        for (int b = 0; b < 256; b++) {
+            List<byte[]> groupNames = new ArrayList<>();
+            List<Integer> groupIndexes = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                if (byteAt(names.get(i), bestOffset) == b) {
+                    groupNames.add(names.get(i));
+                    groupIndexes.add(indexes.get(i));
+                }
+            }
+            if (!groupNames.isEmpty()) {
+                nodeTransitions[b] = build(groupNames, groupIndexes);
+            }
+        }
+        return nodeId;
+    }
+
+    // splitterIndex: index of `|` before the column descriptor, NO_MATCH only when no candidate is left,
+    // a descriptor outside the layout may still resolve to a candidate, see TableSchema.ColumnLayout
+    int match(ByteBuffer byteBuffer, int splitterIndex) {
+        if (rootLeaf < 0)
+            return rootLeaf == UNKNOWN ? NO_MATCH : -(rootLeaf + 1);
+        int node = 0;
+        while (true) {
+            int b = byteBuffer.get(splitterIndex + 1 + peekOffsets[node]) & 0xFF;
+            int next = transitions[node << 8 | b];
+            if (next < 0) {
+                return next == UNKNOWN ? NO_MATCH : -(next + 1);
+            }
+            node = next;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * a ResultSink which also takes segments as regions of a file, e.g. to ship them with FileChannel.transferTo
+ */
+public interface FileRegionSink extends ResultSink {
+    void sendRegion(FileChannel fileChannel, long position, long length);
+}
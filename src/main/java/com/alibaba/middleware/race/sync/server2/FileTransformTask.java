@@ -3,8 +3,8 @@ package com.alibaba.middleware.race.sync.server2;
 
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.reorderRing;
 
 /**
  * Created by yche on 6/18/17.
@@ -27,38 +27,69 @@ public class FileTransformTask implements Runnable {
     private final RecordScanner recordScanner;
     private final ExtraTaskInfo taskInfo;
 
-    // result
+    // chunk-skip index to fill in, when it is not loaded from sidecar
+    private ChunkSummaryIndex chunkSummaryIndex;
+    private int sliceIndex;
+    // bytes of the slice, the previous chunk's tail included
+    private final int sliceBytes;
+
+    // position in the log, and the chunk to release when done
+    private long sequence;
+    private FileTransformMediatorTask chunkTask;
 
-    FileTransformTask(MappedByteBuffer mappedByteBuffer, int startIndex, int endIndex, Future<?> prevFuture) {
-        this.recordScanner = new RecordScanner(mappedByteBuffer, startIndex, endIndex, prevFuture);
+    FileTransformTask(MappedByteBuffer mappedByteBuffer, int startIndex, int endIndex) {
+        this.recordScanner = new RecordScanner(mappedByteBuffer, startIndex, endIndex);
         taskInfo = null;
+        sliceBytes = endIndex - startIndex;
     }
 
     // for the first small chunk
-    FileTransformTask(MappedByteBuffer mappedByteBuffer, int startIndex, int endIndex, ByteBuffer remainingByteBuffer, Future<?> prevFuture) {
-        recordScanner = new RecordScanner(remainingByteBuffer, 0, remainingByteBuffer.limit(), prevFuture);
+    FileTransformTask(MappedByteBuffer mappedByteBuffer, int startIndex, int endIndex, ByteBuffer remainingByteBuffer) {
+        recordScanner = new RecordScanner(remainingByteBuffer, 0, remainingByteBuffer.limit());
         taskInfo = new ExtraTaskInfo(mappedByteBuffer, startIndex, endIndex);
+        sliceBytes = remainingByteBuffer.limit() + endIndex - startIndex;
+    }
+
+    // used by mediator thread, right before submitting
+    void attach(ChunkSummaryIndex chunkSummaryIndex, int sliceIndex, FileTransformMediatorTask chunkTask, long sequence) {
+        this.chunkSummaryIndex = chunkSummaryIndex;
+        this.sliceIndex = sliceIndex;
+        this.chunkTask = chunkTask;
+        this.sequence = sequence;
+    }
+
+    private void recordSummary() {
+        if (chunkSummaryIndex != null && !chunkSummaryIndex.isValid()) {
+            recordScanner.recordSummary(chunkSummaryIndex, sliceIndex);
+        }
     }
 
+    private void recordScanTime(long startTime) {
+        PipelineMetrics.scanSlice.record(System.nanoTime() - startTime);
+        PipelineMetrics.scannedBytes.addAndGet(sliceBytes);
+    }
+
+    // the claimed sequence is published and the chunk released even if the scan fails, so that the ring moves on
     @Override
     public void run() {
-        if (taskInfo != null) {
-            try {
-                recordScanner.compute();
+        long startTime = System.nanoTime();
+        try {
+            recordScanner.compute();
+            if (taskInfo != null) {
                 recordScanner.reuse(taskInfo.mappedByteBuffer, taskInfo.startIndex, taskInfo.endIndex);
                 recordScanner.compute();
-                recordScanner.waitForSend();
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            }
-        } else {
-            try {
-                recordScanner.compute();
-                recordScanner.waitForSend();
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
             }
+            recordSummary();
+            recordScanTime(startTime);
+        } catch (RuntimeException | Error e) {
+            // an empty slice, the run aborts with the cause once the pipeline drained
+            recordScanner.discard();
+            if (chunkSummaryIndex != null)
+                chunkSummaryIndex.sliceFailed();
+            PipelinedComputation.failScan(e);
+        } finally {
+            recordScanner.publishInOrder(reorderRing, sequence);
+            chunkTask.sliceDone();
         }
-
     }
-}
\ No newline at end of file
+}
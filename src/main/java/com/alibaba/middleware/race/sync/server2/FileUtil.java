@@ -1,20 +1,144 @@
 package com.alibaba.middleware.race.sync.server2;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * Created by yche on 6/20/17.
  */
 final public class FileUtil {
+    // one path per line, relative to the manifest's folder, `#` for comments
+    public static final String INPUT_MANIFEST_NAME = "input.manifest";
+
+    // JDK 9+: sun.misc.Unsafe.invokeCleaner, JDK 7/8: DirectByteBuffer.cleaner().clean(), looked up once by reflection
+    // neither: canUnmap is false and a mapping is released by the GC only
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+    public static final boolean canUnmap;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = method;
+        } catch (Exception e) {
+            // JDK 7/8 has no invokeCleaner
+        }
+        if (invokeCleaner == null) {
+            try {
+                Method method = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+                method.setAccessible(true);
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                cleaner = method;
+            } catch (Exception e) {
+                // e.g. a JDK without sun.misc
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+        canUnmap = invokeCleaner != null || cleaner != null;
+    }
+
+    // the buffer must not be touched afterwards, nothing happens without canUnmap
     public static void unmap(MappedByteBuffer mbb) {
         try {
-            Method cleaner = mbb.getClass().getMethod("cleaner");
-            cleaner.setAccessible(true);
-            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
-            clean.invoke(cleaner.invoke(mbb));
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, mbb);
+            } else if (CLEANER != null) {
+                Object cleaner = CLEANER.invoke(mbb);
+                if (cleaner != null)
+                    CLEAN.invoke(cleaner);
+            }
         } catch (Exception e) {
-            e.printStackTrace();
+            // e.g. a slice, which has no cleaner of its own, left to the GC
+        }
+    }
+
+    // value of the last digit run of the name, e.g. 10 for `10.txt`, 12 for `mysql-bin.000012`, -1 for none
+    private static long sequenceOf(String fileName) {
+        int end = fileName.length();
+        while (end > 0 && !Character.isDigit(fileName.charAt(end - 1)))
+            end--;
+        int start = end;
+        while (start > 0 && Character.isDigit(fileName.charAt(start - 1)))
+            start--;
+        if (start == end)
+            return -1;
+        while (start < end - 1 && fileName.charAt(start) == '0')
+            start++;
+        if (end - start > 18)
+            return Long.MAX_VALUE;
+        return Long.parseLong(fileName.substring(start, end));
+    }
+
+    private static ArrayList<String> readManifest(File manifest) throws IOException {
+        ArrayList<String> filePaths = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                File file = new File(line);
+                filePaths.add((file.isAbsolute() ? file : new File(manifest.getParentFile(), line)).getPath());
+            }
+        }
+        return filePaths;
+    }
+
+    /**
+     * input files in log order:
+     * 1st: a manifest file, or INPUT_MANIFEST_NAME inside the folder, lists the files in order
+     * 2nd: otherwise every visible file of the folder with a sequence number in its name, by sequence then name
+     */
+    public static ArrayList<String> listInputFiles(String dataHome) throws IOException {
+        File home = new File(dataHome);
+        if (home.isFile())
+            return readManifest(home);
+        File manifest = new File(home, INPUT_MANIFEST_NAME);
+        if (manifest.isFile())
+            return readManifest(manifest);
+
+        File[] files = home.listFiles();
+        if (files == null)
+            throw new IOException("no input folder: " + dataHome);
+        ArrayList<File> dataFiles = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile() && !file.isHidden() && sequenceOf(file.getName()) != -1)
+                dataFiles.add(file);
+        }
+        File[] sortedFiles = dataFiles.toArray(new File[0]);
+        Arrays.sort(sortedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                int cmp = Long.compare(sequenceOf(o1.getName()), sequenceOf(o2.getName()));
+                return cmp != 0 ? cmp : o1.getName().compareTo(o2.getName());
+            }
+        });
+        ArrayList<String> filePaths = new ArrayList<>();
+        for (File file : sortedFiles) {
+            filePaths.add(file.getPath());
         }
+        return filePaths;
     }
-}
\ No newline at end of file
+}
@@ -7,54 +7,63 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.CHUNK_SIZE;
-import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.mediatorTasks;
 
 /**
  * Created by yche on 6/22/17.
+ * chunk geometry of one input file, offsets in long, so files over 2GB are fine
  */
 class MmapReader {
-    private FileChannel fileChannel;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
 
-    private int nextIndex;
-    private int maxIndex;   // inclusive
-    private int lastChunkLength;
+    private final long startOffset;
+    final long fileSize;
+    final int chunkNum;
+    final ChunkSummaryIndex chunkSummaryIndex;
 
-    MmapReader(String filePath) throws IOException {
-        File file = new File(filePath);
-        int fileSize = (int) file.length();
-        this.lastChunkLength = fileSize % CHUNK_SIZE != 0 ? fileSize % CHUNK_SIZE : CHUNK_SIZE;
+    // startOffset: bytes before it are already restored, see Checkpoint
+    MmapReader(String filePath, long startOffset) throws IOException {
+        // 1st: index info
+        this.startOffset = startOffset;
+        this.fileSize = new File(filePath).length();
+        this.chunkNum = (int) ((fileSize - startOffset + CHUNK_SIZE - 1) / CHUNK_SIZE);
 
-        // 2nd: index info
-        this.maxIndex = fileSize % CHUNK_SIZE != 0 ? fileSize / CHUNK_SIZE : fileSize / CHUNK_SIZE - 1;
+        // 2nd: fileChannel for reading with mmap
+        this.randomAccessFile = new RandomAccessFile(filePath, "r");
+        this.fileChannel = randomAccessFile.getChannel();
 
-        // 3rd: fileChannel for reading with mmap
-        this.fileChannel = new RandomAccessFile(filePath, "r").getChannel();
+        // 3rd: chunk-skip index, built during the first run
+        this.chunkSummaryIndex = ChunkSummaryIndex.load(filePath, startOffset, chunkNum);
     }
 
-    // 1st work
-    private void fetchNextMmapChunk() throws IOException {
-        int currChunkLength = nextIndex != maxIndex ? CHUNK_SIZE : lastChunkLength;
+    int chunkLength(int chunkIndex) {
+        return (int) Math.min(CHUNK_SIZE, fileSize - startOffset - (long) chunkIndex * CHUNK_SIZE);
+    }
 
-        MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, nextIndex * CHUNK_SIZE, currChunkLength);
-        mappedByteBuffer.load();
-        if (!RecordField.isInit()) {
-            new RecordField(mappedByteBuffer).initFieldIndexMap();
+    // used by prefetch threads, pages of a chunk without any relevant slice are not loaded
+    MappedByteBuffer mapChunk(int chunkIndex) throws IOException {
+        long startTime = System.nanoTime();
+        MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                startOffset + (long) chunkIndex * CHUNK_SIZE, chunkLength(chunkIndex));
+        if (chunkSummaryIndex.isChunkRelevant(chunkIndex)) {
+            mappedByteBuffer.load();
+            PipelineMetrics.mappedBytes.addAndGet(mappedByteBuffer.limit());
         }
+        PipelineMetrics.mapLoad.record(System.nanoTime() - startTime);
+        return mappedByteBuffer;
+    }
 
-        try {
-            mediatorTasks.put(new FileTransformMediatorTask(mappedByteBuffer, currChunkLength));
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    FileTransformMediatorTask mediatorTaskOf(int chunkIndex, MappedByteBuffer mappedByteBuffer) {
+        return new FileTransformMediatorTask(mappedByteBuffer, chunkLength(chunkIndex),
+                chunkSummaryIndex, chunkIndex);
     }
 
-    void fetchChunks() {
-        for (nextIndex = 0; nextIndex <= maxIndex; nextIndex++) {
-            try {
-                fetchNextMmapChunk();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    // mappings stay valid after the channel is closed
+    void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 }
@@ -0,0 +1,118 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static com.alibaba.middleware.race.sync.server2.ColumnDictionary.RAW_CODE;
+
+/**
+ * packed operations of one slice for one restore shard, in log order, decoded in place by RestoreComputation
+ * record: header, key, then a (column, value) pair per present column
+ * header: op type in the high 32 bits, pair count in the low 32 bits
+ * column: column index in the low 32 bits, 1 + index into rawValues in the high 32 bits for RAW_CODE strings
+ * buffers are recycled through a pool, so steady-state scanning allocates no per-record objects
+ */
+class OperationBuffer {
+    static final int DELETE = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+
+    private static final int INIT_WORD_NUM = 4096;
+    private static final int POOL_SIZE = 256;
+    private static final BlockingQueue<OperationBuffer> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    long[] words = new long[INIT_WORD_NUM];
+    int size = 0;
+    int recordNum = 0;
+    // only for high-cardinality columns which fall back to raw byte storage
+    byte[][] rawValues = new byte[0][];
+    private int rawNum = 0;
+    // header of the record being written
+    private int headerIndex;
+
+    // used by transform thread pool
+    static OperationBuffer acquire() {
+        OperationBuffer operationBuffer = pool.poll();
+        return operationBuffer != null ? operationBuffer : new OperationBuffer();
+    }
+
+    // used by restore shards, after the buffer is computed
+    void recycle() {
+        clear();
+        pool.offer(this);
+    }
+
+    void clear() {
+        size = 0;
+        recordNum = 0;
+        Arrays.fill(rawValues, 0, rawNum, null);
+        rawNum = 0;
+    }
+
+    private void ensureWords(int wordNum) {
+        if (size + wordNum > words.length) {
+            words = Arrays.copyOf(words, Math.max(words.length << 1, size + wordNum));
+        }
+    }
+
+    void addDelete(long key) {
+        ensureWords(2);
+        words[size++] = (long) DELETE << 32;
+        words[size++] = key;
+        recordNum++;
+    }
+
+    // insert or update, columns follow through addNumber / addString
+    void beginRecord(int opType, long key) {
+        ensureWords(2);
+        headerIndex = size;
+        words[size++] = (long) opType << 32;
+        words[size++] = key;
+        recordNum++;
+    }
+
+    private void addPair(long column, long value) {
+        ensureWords(2);
+        words[size++] = column;
+        words[size++] = value;
+        words[headerIndex]++;
+    }
+
+    void addNumber(int index, long value) {
+        addPair(index, value);
+    }
+
+    // byteBuffer is a heap buffer in [0, limit)
+    void addString(int index, ColumnDictionary dictionary, ByteBuffer byteBuffer) {
+        short code = dictionary.encode(byteBuffer);
+        if (code != RAW_CODE) {
+            addPair(index, code);
+            return;
+        }
+        if (rawNum == rawValues.length) {
+            rawValues = Arrays.copyOf(rawValues, Math.max(16, rawNum << 1));
+        }
+        rawValues[rawNum++] = Arrays.copyOfRange(byteBuffer.array(), byteBuffer.arrayOffset(),
+                byteBuffer.arrayOffset() + byteBuffer.limit());
+        addPair(index | (long) rawNum << 32, code);
+    }
+
+    static int opTypeOf(long header) {
+        return (int) (header >>> 32);
+    }
+
+    static int pairNumOf(long header) {
+        return (int) header;
+    }
+
+    static int columnIndexOf(long column) {
+        return (int) column;
+    }
+
+    byte[] rawValueOf(long column) {
+        int rawIndex = (int) (column >>> 32);
+        return rawIndex == 0 ? null : rawValues[rawIndex - 1];
+    }
+}
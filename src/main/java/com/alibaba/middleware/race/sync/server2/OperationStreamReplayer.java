@@ -0,0 +1,102 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.EVAL_WORKER_NUM;
+
+/**
+ * split compute, client side: restores the chunks of OperationStreamWriter while the rest is still arriving,
+ * then evaluates the table, through the same restore shards and eval tasks as the server
+ */
+public class OperationStreamReplayer {
+    private final TableSchema tableSchema;
+    private final OperationBuffer[] shardBuffers;
+    private ByteBuffer tmpBuffer = ByteBuffer.allocate(64);
+
+    // args: schema, table, start, end, as sent by the server
+    public OperationStreamReplayer(String[] args) {
+        PipelinedComputation.initRange(Unsigned.parse(args[2]), Unsigned.parse(args[3]));
+        tableSchema = new TableSchema(0, (args[0] + "|" + args[1]).getBytes(), 0, true);
+        shardBuffers = new OperationBuffer[tableSchema.restoreEngine.shards.length];
+    }
+
+    private void readLayout(ByteBuffer chunk) {
+        int columnNum = chunk.getInt();
+        for (int i = tableSchema.columnNum(); i < columnNum; i++) {
+            byte[] descriptor = new byte[chunk.getShort()];
+            chunk.get(descriptor);
+            tableSchema.registerColumn(descriptor);
+        }
+        int outputColumnNum = chunk.getInt();
+        if (outputColumnNum > 0) {
+            TableSchema.ColumnLayout layout = tableSchema.layout();
+            List<byte[]> recordDescriptors = new ArrayList<>(outputColumnNum);
+            for (int i = 0; i < outputColumnNum; i++) {
+                recordDescriptors.add(layout.descriptors[chunk.getInt()]);
+            }
+            tableSchema.completeLayout(recordDescriptors);
+        }
+    }
+
+    private OperationBuffer bufferOf(long key) {
+        int shardIndex = tableSchema.restoreEngine.shardIndexOf(key);
+        OperationBuffer operationBuffer = shardBuffers[shardIndex];
+        if (operationBuffer == null) {
+            operationBuffer = OperationBuffer.acquire();
+            shardBuffers[shardIndex] = operationBuffer;
+        }
+        return operationBuffer;
+    }
+
+    // into tmpBuffer in [0, len), like RecordScanner
+    private void getBytesIntoTmp(ByteBuffer chunk, int len) {
+        if (tmpBuffer.capacity() < len) {
+            tmpBuffer = ByteBuffer.allocate(Math.max(tmpBuffer.capacity() << 1, len));
+        }
+        chunk.get(tmpBuffer.array(), 0, len);
+        tmpBuffer.clear();
+        tmpBuffer.limit(len);
+    }
+
+    // used by the receiving thread, chunks in the order they were sent, restore runs on restorePool meanwhile
+    public void replay(ByteBuffer chunk) throws InterruptedException {
+        readLayout(chunk);
+        TableSchema.ColumnLayout layout = tableSchema.layout();
+        while (chunk.hasRemaining()) {
+            int opType = chunk.get();
+            long key = chunk.getLong();
+            OperationBuffer operationBuffer = bufferOf(key);
+            if (opType == OperationBuffer.DELETE) {
+                operationBuffer.addDelete(key);
+                continue;
+            }
+            operationBuffer.beginRecord(opType, key);
+            int pairNum = chunk.getShort();
+            for (int i = 0; i < pairNum; i++) {
+                int index = chunk.getShort();
+                if (layout.isStringColumn[index]) {
+                    getBytesIntoTmp(chunk, chunk.getInt());
+                    operationBuffer.addString(index, layout.dictionaries[index], tmpBuffer);
+                } else {
+                    operationBuffer.addNumber(index, chunk.getLong());
+                }
+            }
+        }
+        tableSchema.restoreEngine.publish(shardBuffers);
+        Arrays.fill(shardBuffers, null);
+    }
+
+    // used by the receiving thread, after the server closed the stream
+    public void evalAndSend(ResultSink resultSink) throws InterruptedException {
+        RestoreShard.awaitAllRestored();
+        PipelinedComputation.restorePool.shutdown();
+        ExecutorService evalPool = PipelineExecutors.newStageExecutor(EVAL_WORKER_NUM);
+        RestoreComputation.parallelEvalAndSend(evalPool, tableSchema, resultSink);
+        evalPool.shutdown();
+    }
+}
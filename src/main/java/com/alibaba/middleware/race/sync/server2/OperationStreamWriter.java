@@ -0,0 +1,116 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+
+import static com.alibaba.middleware.race.sync.server2.ColumnDictionary.RAW_CODE;
+
+/**
+ * split compute, server side: packed operations of one selected table are sent to the client instead of restored
+ * one chunk per drained slice, in log order, see OperationStreamReplayer for the decoding
+ * chunk: column num, descriptors not sent before, output order once complete (0: none), then records
+ * record: op type, key, then for insert / update pair num and (column, value) pairs
+ * value: string columns as length and bytes, numeric columns as long, NULL_VALUE included
+ */
+class OperationStreamWriter {
+    private final TableSchema tableSchema;
+    private final ResultSink resultSink;
+    private int sentColumnNum = 0;
+    private boolean isOutputOrderSent = false;
+
+    private ByteBuffer chunk;
+
+    OperationStreamWriter(TableSchema tableSchema, ResultSink resultSink) {
+        this.tableSchema = tableSchema;
+        this.resultSink = resultSink;
+    }
+
+    private void ensureRemaining(int byteNum) {
+        if (chunk.remaining() < byteNum) {
+            ByteBuffer largerChunk = ByteBuffer.allocate(Math.max(chunk.capacity() << 1, chunk.position() + byteNum));
+            chunk.flip();
+            largerChunk.put(chunk);
+            chunk = largerChunk;
+        }
+    }
+
+    private void putLayout() {
+        TableSchema.ColumnLayout layout = tableSchema.layout();
+        ensureRemaining(4);
+        chunk.putInt(layout.columnNum());
+        for (int i = sentColumnNum; i < layout.columnNum(); i++) {
+            byte[] descriptor = layout.descriptors[i];
+            ensureRemaining(2 + descriptor.length);
+            chunk.putShort((short) descriptor.length);
+            chunk.put(descriptor);
+        }
+        sentColumnNum = layout.columnNum();
+
+        if (isOutputOrderSent || !layout.isComplete()) {
+            ensureRemaining(4);
+            chunk.putInt(0);
+            return;
+        }
+        ensureRemaining(4 + 4 * layout.outputOrder.length);
+        chunk.putInt(layout.outputOrder.length);
+        for (int index : layout.outputOrder) {
+            chunk.putInt(index);
+        }
+        isOutputOrderSent = true;
+    }
+
+    private void putRecords(OperationBuffer operationBuffer) {
+        TableSchema.ColumnLayout layout = tableSchema.layout();
+        long[] words = operationBuffer.words;
+        int index = 0;
+        while (index < operationBuffer.size) {
+            long header = words[index];
+            int opType = OperationBuffer.opTypeOf(header);
+            ensureRemaining(11);
+            chunk.put((byte) opType);
+            chunk.putLong(words[index + 1]);
+            index += 2;
+            if (opType == OperationBuffer.DELETE)
+                continue;
+
+            int pairNum = OperationBuffer.pairNumOf(header);
+            chunk.putShort((short) pairNum);
+            for (int end = index + 2 * pairNum; index < end; index += 2) {
+                long column = words[index];
+                int columnIndex = OperationBuffer.columnIndexOf(column);
+                long value = words[index + 1];
+                if (layout.isStringColumn[columnIndex]) {
+                    byte[] bytes = value == RAW_CODE ? operationBuffer.rawValueOf(column) :
+                            layout.dictionaries[columnIndex].decode((short) value);
+                    ensureRemaining(6 + bytes.length);
+                    chunk.putShort((short) columnIndex);
+                    chunk.putInt(bytes.length);
+                    chunk.put(bytes);
+                } else {
+                    ensureRemaining(10);
+                    chunk.putShort((short) columnIndex);
+                    chunk.putLong(value);
+                }
+            }
+        }
+    }
+
+    // used by the draining transform thread, in log order, shards are key-disjoint so their order does not matter
+    void write(OperationBuffer[] shardBuffers) {
+        chunk = ByteBuffer.allocate(64 * 1024);
+        putLayout();
+        for (OperationBuffer operationBuffer : shardBuffers) {
+            if (operationBuffer != null) {
+                putRecords(operationBuffer);
+                operationBuffer.recycle();
+            }
+        }
+        chunk.flip();
+        resultSink.send(chunk);
+        chunk = null;
+    }
+
+    // used by master thread, after all slices are drained, the layout may complete without operations in range
+    void finish() {
+        write(new OperationBuffer[0]);
+    }
+}
@@ -0,0 +1,46 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * executors of the pipeline stages and the networking threads
+ * -Dsync.virtualThreads=true: a virtual thread per task on JDK 21+, looked up by reflection so that the jar still
+ * builds and runs on Java 7, blocked hand-overs (queues, Future.get, socket io) then only park a virtual thread
+ * and a stage needs no sizing, otherwise, or when the JDK has none, fixed pools of platform threads
+ * a stage is scoped by shutdown and awaitTermination on the master thread, as for the fixed pools
+ */
+public class PipelineExecutors {
+    private static final Method newVirtualThreadExecutor = virtualThreadExecutorFactory();
+    public static final boolean isVirtualThreaded = newVirtualThreadExecutor != null;
+
+    private static Method virtualThreadExecutorFactory() {
+        if (!Boolean.getBoolean("sync.virtualThreads"))
+            return null;
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // preview-only JDKs throw UnsupportedOperationException without --enable-preview
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return method;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            System.out.println("virtual threads unavailable on " + System.getProperty("java.version") + ", fixed thread pools are used");
+            return null;
+        }
+    }
+
+    // threadNum: size of the fixed pool, not a bound with virtual threads: a task per submit, running ones share the
+    // carrier threads, one per core, and how many are in flight is bounded by the stage hand-overs instead,
+    // reorder ring, restore queues, eval segments and stream count, so -Dsync.transformWorkers etc. have no effect
+    public static ExecutorService newStageExecutor(int threadNum) {
+        if (isVirtualThreaded) {
+            try {
+                return (ExecutorService) newVirtualThreadExecutor.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                e.printStackTrace();
+            }
+        }
+        return Executors.newFixedThreadPool(threadNum);
+    }
+}
@@ -0,0 +1,253 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * always-on stage counters of the pipeline, a few atomic adds per chunk, slice, batch or segment, never per record
+ * registered as MBean `com.alibaba.middleware.race.sync:type=PipelineMetrics`, dumped by report() at the end of a run
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+    private static final String OBJECT_NAME = "com.alibaba.middleware.race.sync:type=PipelineMetrics";
+
+    /**
+     * count, sum, max and log2 buckets of a value, e.g. nanos of one wait or size of a queue
+     */
+    public static class Histogram {
+        private final String name;
+        private final String unit;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        // bucket i: values in [2^(i-1), 2^i), bucket 0: 0
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        Histogram(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        public void record(long value) {
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(value, 0)));
+            long prevMax;
+            while (value > (prevMax = max.get()) && !max.compareAndSet(prevMax, value)) {
+            }
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        public long sum() {
+            return sum.get();
+        }
+
+        public double mean() {
+            long count = this.count.get();
+            return count == 0 ? 0 : (double) sum.get() / count;
+        }
+
+        // upper bound of the bucket holding the quantile
+        public long percentile(double quantile) {
+            long rank = (long) Math.ceil(count.get() * quantile);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return i == 0 ? 0 : Math.min(1L << i, max.get());
+            }
+            return max.get();
+        }
+
+        void reset() {
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+            for (int i = 0; i < 64; i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (unit.equals("ns")) {
+                return String.format("%-20s n=%-9d total=%10.3f ms  mean=%10.3f us  p50<=%10.3f us  p99<=%10.3f us  max=%10.3f us",
+                        name, count(), sum() / 1e6, mean() / 1e3, percentile(0.5) / 1e3, percentile(0.99) / 1e3, max.get() / 1e3);
+            }
+            return String.format("%-20s n=%-9d total=%13d %s  mean=%10.2f  p50<=%d  p99<=%d  max=%d",
+                    name, count(), sum(), unit, mean(), percentile(0.5), percentile(0.99), max.get());
+        }
+    }
+
+    // 1st: input, per chunk on prefetch threads
+    static final Histogram mapLoad = new Histogram("mmap+load", "ns");
+    static final AtomicLong mappedBytes = new AtomicLong();
+    // 2nd: scan, per slice on transform threads, claim: mediator blocked on a full ReorderRing
+    static final Histogram scanSlice = new Histogram("scan slice", "ns");
+    static final AtomicLong scannedBytes = new AtomicLong();
+    static final Histogram ringClaimWait = new Histogram("reorder ring claim", "ns");
+    // 3rd: hand-over queues, occupancy sampled before each put
+    static final Histogram mediatorPutWait = new Histogram("mediatorTasks put", "ns");
+    static final Histogram mediatorTakeWait = new Histogram("mediatorTasks take", "ns");
+    static final Histogram mediatorOccupancy = new Histogram("mediatorTasks size", "tasks");
+    static final Histogram restorePublishWait = new Histogram("restoreQueue put", "ns");
+    static final Histogram restoreOccupancy = new Histogram("restoreQueue size", "batches");
+    // 4th: restore, per drained batch on restorePool
+    static final Histogram restoreBatch = new Histogram("restore batch", "ns");
+    static final AtomicLong restoredOps = new AtomicLong();
+    // 5th: eval per segment, send blocked in the sink / on the socket
+    static final Histogram evalSegment = new Histogram("eval segment", "ns");
+    static final Histogram sinkSend = new Histogram("sink send", "ns");
+    public static final Histogram networkSend = new Histogram("network send", "ns");
+    public static final AtomicLong networkSentBytes = new AtomicLong();
+
+    private static final Histogram[] histograms = {mapLoad, scanSlice, ringClaimWait, mediatorPutWait, mediatorTakeWait,
+            mediatorOccupancy, restorePublishWait, restoreOccupancy, restoreBatch, evalSegment, sinkSend, networkSend};
+    private static final AtomicLong[] counters = {mappedBytes, scannedBytes, restoredOps, networkSentBytes};
+
+    private static final PipelineMetrics instance = new PipelineMetrics();
+    private static boolean isRegistered = false;
+
+    // used by master thread, before scanning
+    static synchronized void register() {
+        if (isRegistered)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            isRegistered = true;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double perSecond(long amount, long nanos) {
+        return nanos == 0 ? 0 : amount / (nanos / 1e9);
+    }
+
+    @Override
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    @Override
+    public long getMapLoadNanos() {
+        return mapLoad.sum();
+    }
+
+    @Override
+    public long getScannedBytes() {
+        return scannedBytes.get();
+    }
+
+    @Override
+    public long getScanNanos() {
+        return scanSlice.sum();
+    }
+
+    // per transform thread
+    @Override
+    public double getScanBytesPerSecond() {
+        return perSecond(scannedBytes.get(), scanSlice.sum());
+    }
+
+    @Override
+    public long getRingClaimWaitNanos() {
+        return ringClaimWait.sum();
+    }
+
+    @Override
+    public long getMediatorPutWaitNanos() {
+        return mediatorPutWait.sum();
+    }
+
+    @Override
+    public long getMediatorTakeWaitNanos() {
+        return mediatorTakeWait.sum();
+    }
+
+    @Override
+    public double getMediatorQueueOccupancy() {
+        return mediatorOccupancy.mean();
+    }
+
+    @Override
+    public long getRestorePublishWaitNanos() {
+        return restorePublishWait.sum();
+    }
+
+    @Override
+    public double getRestoreQueueOccupancy() {
+        return restoreOccupancy.mean();
+    }
+
+    @Override
+    public long getRestoredOps() {
+        return restoredOps.get();
+    }
+
+    // per restore thread
+    @Override
+    public double getRestoreOpsPerSecond() {
+        return perSecond(restoredOps.get(), restoreBatch.sum());
+    }
+
+    @Override
+    public long getEvalNanos() {
+        return evalSegment.sum();
+    }
+
+    @Override
+    public long getSinkSendNanos() {
+        return sinkSend.sum();
+    }
+
+    @Override
+    public long getNetworkSendNanos() {
+        return networkSend.sum();
+    }
+
+    @Override
+    public long getNetworkSentBytes() {
+        return networkSentBytes.get();
+    }
+
+    @Override
+    public String getReport() {
+        return report();
+    }
+
+    @Override
+    public void reset() {
+        resetAll();
+    }
+
+    static void resetAll() {
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : counters) {
+            counter.set(0);
+        }
+    }
+
+    public static String report() {
+        StringBuilder stringBuilder = new StringBuilder("pipeline metrics, times summed over the threads of a stage\n");
+        stringBuilder.append(String.format("restore phase %.3f s, eval-send phase %.3f s%n",
+                PipelinedComputation.restoreNanos / 1e9, PipelinedComputation.evalSendNanos / 1e9));
+        stringBuilder.append(String.format("mapped %d bytes, scanned %d bytes, %.1f MB/s per transform thread%n",
+                mappedBytes.get(), scannedBytes.get(), instance.getScanBytesPerSecond() / (1024 * 1024)));
+        stringBuilder.append(String.format("restored %d ops, %.0f ops/s per restore thread, %.0f ops/s over the restore phase%n",
+                restoredOps.get(), instance.getRestoreOpsPerSecond(), perSecond(restoredOps.get(), PipelinedComputation.restoreNanos)));
+        stringBuilder.append(String.format("sent %d bytes on the network%n", networkSentBytes.get()));
+        stringBuilder.append(PipelineTuning.describe());
+        for (Histogram histogram : histograms) {
+            stringBuilder.append(histogram).append('\n');
+        }
+        return stringBuilder.toString();
+    }
+}
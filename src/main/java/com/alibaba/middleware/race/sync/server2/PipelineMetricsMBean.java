@@ -0,0 +1,44 @@
+package com.alibaba.middleware.race.sync.server2;
+
+/**
+ * jmx view of PipelineMetrics, times in nanoseconds summed over all threads of a stage
+ */
+public interface PipelineMetricsMBean {
+    long getMappedBytes();
+
+    long getMapLoadNanos();
+
+    long getScannedBytes();
+
+    long getScanNanos();
+
+    double getScanBytesPerSecond();
+
+    long getRingClaimWaitNanos();
+
+    long getMediatorPutWaitNanos();
+
+    long getMediatorTakeWaitNanos();
+
+    double getMediatorQueueOccupancy();
+
+    long getRestorePublishWaitNanos();
+
+    double getRestoreQueueOccupancy();
+
+    long getRestoredOps();
+
+    double getRestoreOpsPerSecond();
+
+    long getEvalNanos();
+
+    long getSinkSendNanos();
+
+    long getNetworkSendNanos();
+
+    long getNetworkSentBytes();
+
+    String getReport();
+
+    void reset();
+}
@@ -0,0 +1,203 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.*;
+
+/**
+ * sizes the pipeline for the host and the input instead of the constants of one contest box
+ * startup, by init: workers from availableProcessors, chunk size from the input size, queue depths from the free heap
+ * during the run, by adapt: threads move between transform and restore by the stall time of the mediator
+ * and restore stages, the prefetch window deepens while the mediator starves for chunks
+ * chunk geometry, CHUNK_SIZE and WORK_NUM, stays fixed within a run, ChunkSummaryIndex keys its slices on it
+ * -Dsync.autoTune=false keeps the defaults, -Dsync.transformWorkers=n etc. pin one knob, in either mode
+ * virtual threads: the worker counts size nothing, see PipelineExecutors.newStageExecutor, the rest still applies
+ */
+class PipelineTuning {
+    private static final long MB = 1024 * 1024;
+    // per slice, the one of the contest box: 64 MB chunks in 16 slices
+    private static final long MIN_SLICE_SIZE = MB / 4;
+    private static final long MAX_SLICE_SIZE = 4 * MB;
+    // chunks per run at least, so that prefetch, transform and restore overlap on small inputs
+    private static final int MIN_CHUNK_NUM = 8;
+    // bytes mapped ahead of the mediator
+    private static final long PREFETCH_BYTES = 256 * MB;
+    private static final int MAX_PREFETCH_CHUNK_NUM = 16;
+    // chunks in flight between mediator and restore, scanned operations take about 2 bytes of heap per input byte
+    private static final int MAX_IN_FLIGHT_CHUNK_NUM = 4;
+    // virtual threads: a slice in flight only costs its heap, not a pool thread
+    private static final int MAX_VIRTUAL_IN_FLIGHT_CHUNK_NUM = 16;
+    private static final int HEAP_PER_INPUT_BYTE = 2;
+
+    // adapt: once per interval, a stage stalls when its threads are blocked for more than STALL_RATIO of it
+    private static final long ADAPT_INTERVAL_NANOS = 50L * 1000 * 1000;
+    private static final double STALL_RATIO = 0.25;
+
+    static boolean isAutoTuning = !"false".equals(System.getProperty("sync.autoTune"));
+
+    private static int cpuNum;
+    private static int maxTransformWorkerNum;
+    private static int maxRestoreWorkerNum;
+    private static int adaptedNum;
+
+    // stall times at the last adapt
+    private static long lastAdaptTime;
+    private static long lastRingClaimWait;
+    private static long lastMediatorTakeWait;
+    private static long lastRestorePublishWait;
+
+    private static int knobOf(String name, long tuned) {
+        return Math.max(1, Integer.getInteger(name, (int) tuned));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    // used by master thread, before TableRegistry.init, shards and queues are created with the tuned sizes
+    static void init(List<String> srcFilePaths) {
+        if (!isAutoTuning) {
+            pinDefaults();
+            return;
+        }
+        cpuNum = Runtime.getRuntime().availableProcessors();
+        long inputBytes = 0;
+        for (String srcFilePath : srcFilePaths) {
+            inputBytes += new File(srcFilePath).length();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+
+        // 1st: workers, restore a quarter of the scan threads as on the contest box, two shards per restore worker
+        TRANSFORM_WORKER_NUM = knobOf("sync.transformWorkers", Math.max(2, cpuNum));
+        RESTORE_WORKER_NUM = knobOf("sync.restoreWorkers", Math.max(1, cpuNum / 4));
+        RESTORE_SHARD_NUM = knobOf("sync.restoreShards", Math.max(4, RESTORE_WORKER_NUM * 2));
+        EVAL_WORKER_NUM = knobOf("sync.evalWorkers", Math.max(2, cpuNum));
+        maxTransformWorkerNum = Math.max(TRANSFORM_WORKER_NUM, 2 * cpuNum);
+        maxRestoreWorkerNum = Math.max(RESTORE_WORKER_NUM, Math.min(cpuNum, RESTORE_SHARD_NUM));
+
+        // 2nd: chunk geometry, a power of two so that appends rarely change it and the chunk index stays valid
+        WORK_NUM = TRANSFORM_WORKER_NUM;
+        long chunkSize = Long.highestOneBit(Math.max(1, inputBytes / MIN_CHUNK_NUM));
+        chunkSize = clamp(chunkSize, WORK_NUM * MIN_SLICE_SIZE, WORK_NUM * MAX_SLICE_SIZE);
+        chunkSize = Math.min(chunkSize, Long.highestOneBit(Math.max(1, freeHeap / (HEAP_PER_INPUT_BYTE * MAX_IN_FLIGHT_CHUNK_NUM))));
+        CHUNK_SIZE = knobOf("sync.chunkSize", Math.min(chunkSize, 1 << 30));
+
+        // 3rd: depths, in chunks: mapped ahead of the mediator, scanned but not restored
+        ChunkPrefetcher.PREFETCH_CHUNK_NUM = knobOf("sync.prefetchChunks",
+                clamp(PREFETCH_BYTES / CHUNK_SIZE, 2, MAX_PREFETCH_CHUNK_NUM));
+        long inFlightChunkNum = clamp(freeHeap / ((long) HEAP_PER_INPUT_BYTE * CHUNK_SIZE), 2,
+                PipelineExecutors.isVirtualThreaded ? MAX_VIRTUAL_IN_FLIGHT_CHUNK_NUM : MAX_IN_FLIGHT_CHUNK_NUM);
+        REORDER_RING_SIZE = (int) inFlightChunkNum * WORK_NUM;
+        reorderRing = new ReorderRing(REORDER_RING_SIZE);
+        RestoreShard.RESTORE_QUEUE_DEPTH = (int) inFlightChunkNum * WORK_NUM;
+
+        resize(fileTransformPool, TRANSFORM_WORKER_NUM);
+        resize(restorePool, RESTORE_WORKER_NUM);
+        resize(evalSendPool, EVAL_WORKER_NUM);
+        adaptedNum = 0;
+        lastAdaptTime = 0;
+    }
+
+    // -Dsync.autoTune=false: the defaults of PipelinedComputation, overridden by the pinned knobs only
+    private static void pinDefaults() {
+        TRANSFORM_WORKER_NUM = knobOf("sync.transformWorkers", TRANSFORM_WORKER_NUM);
+        RESTORE_WORKER_NUM = knobOf("sync.restoreWorkers", RESTORE_WORKER_NUM);
+        RESTORE_SHARD_NUM = knobOf("sync.restoreShards", RESTORE_SHARD_NUM);
+        EVAL_WORKER_NUM = knobOf("sync.evalWorkers", EVAL_WORKER_NUM);
+        WORK_NUM = TRANSFORM_WORKER_NUM;
+        CHUNK_SIZE = knobOf("sync.chunkSize", CHUNK_SIZE);
+        ChunkPrefetcher.PREFETCH_CHUNK_NUM = knobOf("sync.prefetchChunks", ChunkPrefetcher.PREFETCH_CHUNK_NUM);
+        // the default depths, 4 chunks in flight, follow the slice count
+        REORDER_RING_SIZE = MAX_IN_FLIGHT_CHUNK_NUM * WORK_NUM;
+        reorderRing = new ReorderRing(REORDER_RING_SIZE);
+        RestoreShard.RESTORE_QUEUE_DEPTH = MAX_IN_FLIGHT_CHUNK_NUM * WORK_NUM;
+
+        resize(fileTransformPool, TRANSFORM_WORKER_NUM);
+        resize(restorePool, RESTORE_WORKER_NUM);
+        resize(evalSendPool, EVAL_WORKER_NUM);
+    }
+
+    // virtual threads: nothing to size, a pool never below one thread
+    private static void resize(ExecutorService pool, int threadNum) {
+        if (!(pool instanceof ThreadPoolExecutor))
+            return;
+        threadNum = Math.max(1, threadNum);
+        ThreadPoolExecutor threadPool = (ThreadPoolExecutor) pool;
+        // core never above max
+        if (threadNum > threadPool.getMaximumPoolSize()) {
+            threadPool.setMaximumPoolSize(threadNum);
+            threadPool.setCorePoolSize(threadNum);
+        } else {
+            threadPool.setCorePoolSize(threadNum);
+            threadPool.setMaximumPoolSize(threadNum);
+        }
+    }
+
+    // used by master thread, after each chunk handed over to the mediator
+    static void adapt() {
+        if (!isAutoTuning)
+            return;
+        long now = System.nanoTime();
+        if (lastAdaptTime == 0) {
+            lastAdaptTime = now;
+            lastRingClaimWait = PipelineMetrics.ringClaimWait.sum();
+            lastMediatorTakeWait = PipelineMetrics.mediatorTakeWait.sum();
+            lastRestorePublishWait = PipelineMetrics.restorePublishWait.sum();
+            return;
+        }
+        long elapsed = now - lastAdaptTime;
+        if (elapsed < ADAPT_INTERVAL_NANOS)
+            return;
+
+        long ringClaimWait = PipelineMetrics.ringClaimWait.sum();
+        long mediatorTakeWait = PipelineMetrics.mediatorTakeWait.sum();
+        long restorePublishWait = PipelineMetrics.restorePublishWait.sum();
+        // mediator blocked on a full ring: slices are not scanned or not restored fast enough
+        double scanStall = (double) (ringClaimWait - lastRingClaimWait) / elapsed;
+        // mediator idle: chunks are not mapped and loaded fast enough
+        double inputStall = (double) (mediatorTakeWait - lastMediatorTakeWait) / elapsed;
+        // transform threads blocked on full restore queues, per thread
+        double restoreStall = (double) (restorePublishWait - lastRestorePublishWait) / elapsed / TRANSFORM_WORKER_NUM;
+        lastAdaptTime = now;
+        lastRingClaimWait = ringClaimWait;
+        lastMediatorTakeWait = mediatorTakeWait;
+        lastRestorePublishWait = restorePublishWait;
+
+        // virtual threads: every slice and shard has its own thread already
+        boolean isPooled = !PipelineExecutors.isVirtualThreaded;
+        if (isPooled && restoreStall > STALL_RATIO && !isSplitCompute) {
+            // restore is the bottleneck, a scan thread less gives its core to a restore thread
+            if (RESTORE_WORKER_NUM < maxRestoreWorkerNum) {
+                resize(restorePool, ++RESTORE_WORKER_NUM);
+                adaptedNum++;
+            }
+            // half of the cores stay with the scan, at least one thread on a single core host
+            if (TRANSFORM_WORKER_NUM + RESTORE_WORKER_NUM > cpuNum && TRANSFORM_WORKER_NUM > Math.max(1, cpuNum / 2)) {
+                resize(fileTransformPool, --TRANSFORM_WORKER_NUM);
+                adaptedNum++;
+            }
+        } else if (isPooled && scanStall > STALL_RATIO && TRANSFORM_WORKER_NUM < maxTransformWorkerNum) {
+            // scan is the bottleneck, more threads cover page faults of the mapped chunks
+            resize(fileTransformPool, ++TRANSFORM_WORKER_NUM);
+            adaptedNum++;
+        }
+        if (inputStall > STALL_RATIO && ChunkPrefetcher.PREFETCH_CHUNK_NUM < MAX_PREFETCH_CHUNK_NUM) {
+            ChunkPrefetcher.PREFETCH_CHUNK_NUM++;
+            adaptedNum++;
+        }
+    }
+
+    static String describe() {
+        // virtual threads: a thread per task, the worker counts are not applied
+        String workers = PipelineExecutors.isVirtualThreaded ? "virtual threads, workers unbounded" :
+                String.format("%d transform, %d restore, %d eval workers", TRANSFORM_WORKER_NUM, RESTORE_WORKER_NUM, EVAL_WORKER_NUM);
+        return String.format("%s: %s, %d restore shards, %d KB chunks in %d slices, " +
+                        "prefetch %d chunks, reorder ring %d slices, %d adaptations%n",
+                isAutoTuning ? "tuned" : "defaults", workers,
+                RESTORE_SHARD_NUM, CHUNK_SIZE / 1024, WORK_NUM, ChunkPrefetcher.PREFETCH_CHUNK_NUM, REORDER_RING_SIZE, adaptedNum);
+    }
+}
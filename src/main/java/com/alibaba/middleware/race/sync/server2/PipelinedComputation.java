@@ -1,39 +1,44 @@
 package com.alibaba.middleware.race.sync.server2;
 
 //import com.alibaba.middleware.race.sync.Server;
-import com.alibaba.middleware.race.sync.server2.operations.LogOperation;
+import com.alibaba.middleware.race.sync.Constants;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by yche on 6/16/17.
  * whole computation logic
  */
 public class PipelinedComputation {
+    // defaults of the contest box, sized for the host and the input by PipelineTuning
     static int CHUNK_SIZE = 64 * 1024 * 1024;
-    private static int TRANSFORM_WORKER_NUM = 16;
+    static int TRANSFORM_WORKER_NUM = 16;
     static int WORK_NUM = TRANSFORM_WORKER_NUM;
-    static ExecutorService fileTransformPool = Executors.newFixedThreadPool(TRANSFORM_WORKER_NUM);
+    static ExecutorService fileTransformPool = PipelineExecutors.newStageExecutor(TRANSFORM_WORKER_NUM);
+
+    // restore stage: key-range shards per table, all shards of all tables drained by restorePool
+    static int RESTORE_SHARD_NUM = 4;
+    static int RESTORE_WORKER_NUM = 4;
+    static ExecutorService restorePool = PipelineExecutors.newStageExecutor(RESTORE_WORKER_NUM);
+
+    // log order between transform and restore, slices of up to 4 chunks in flight
+    static int REORDER_RING_SIZE = 4 * WORK_NUM;
+    static ReorderRing reorderRing = new ReorderRing(REORDER_RING_SIZE);
 
-    static BlockingQueue<LogOperation[]> blockingQueue = new ArrayBlockingQueue<>(64);
     static BlockingQueue<FileTransformMediatorTask> mediatorTasks = new ArrayBlockingQueue<>(1);
 
-    private static ExecutorService computationPool = Executors.newFixedThreadPool(1);
-    private static ExecutorService mediatorPool = Executors.newFixedThreadPool(1);
+    private static ExecutorService mediatorPool = PipelineExecutors.newStageExecutor(1);
 
     static int EVAL_WORKER_NUM = 16;
-    private static ExecutorService evalSendPool = Executors.newFixedThreadPool(EVAL_WORKER_NUM);
-
-    public static final ConcurrentMap<Long, byte[]> finalResultMap = new ConcurrentSkipListMap<>();
+    static ExecutorService evalSendPool = PipelineExecutors.newStageExecutor(EVAL_WORKER_NUM);
 
     private static void joinSinglePool(ExecutorService executorService) {
         executorService.shutdown();
@@ -47,28 +52,33 @@ public class PipelinedComputation {
         }
     }
 
-    public static void firstPhaseComputation(ArrayList<String> srcFilePaths) throws IOException {
-        computationPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        LogOperation[] logOperations = blockingQueue.take();
-                        if (logOperations.length == 0)
-                            break;
-                        RestoreComputation.compute(logOperations);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        });
+    // startOffsets: per file, bytes before are restored from Checkpoint
+    // first failure of a scan slice, the run aborts with it once the pipeline drained
+    private static final AtomicReference<Throwable> scanFailure = new AtomicReference<>();
+
+    // used by transform thread pool
+    static void failScan(Throwable cause) {
+        scanFailure.compareAndSet(null, cause);
+    }
+
+    // nothing of a failed scan is evaluated, sent or checkpointed
+    private static void throwIfScanFailed() throws IOException {
+        Throwable cause = scanFailure.getAndSet(null);
+        if (cause != null) {
+            scannedFilePaths = null;
+            throw new IOException("scan failed, the run is aborted", cause);
+        }
+    }
+
+    public static void firstPhaseComputation(ArrayList<String> srcFilePaths, long[] startOffsets) throws IOException {
         mediatorPool.execute(new Runnable() {
             @Override
             public void run() {
                 while (true) {
                     try {
+                        long startTime = System.nanoTime();
                         FileTransformMediatorTask fileTransformMediatorTask = mediatorTasks.take();
+                        PipelineMetrics.mediatorTakeWait.record(System.nanoTime() - startTime);
                         if (fileTransformMediatorTask.isFinished)
                             break;
                         fileTransformMediatorTask.transform();
@@ -79,10 +89,10 @@ public class PipelinedComputation {
             }
         });
 
-        for (String pathString : srcFilePaths) {
-            MmapReader mmapReader = new MmapReader(pathString);
-            mmapReader.fetchChunks();
-        }
+        ChunkPrefetcher chunkPrefetcher = new ChunkPrefetcher(srcFilePaths, startOffsets);
+        scannedFilePaths = srcFilePaths;
+        scannedEnds = chunkPrefetcher.scannedEnds();
+        chunkPrefetcher.fetchChunks();
 
         try {
             mediatorTasks.put(new FileTransformMediatorTask());
@@ -92,36 +102,208 @@ public class PipelinedComputation {
 
         joinSinglePool(mediatorPool);
         joinSinglePool(fileTransformPool);
+        // split compute: nothing restored here, restorePool is left to an in-process client
+        if (isSplitCompute) {
+            throwIfScanFailed();
+            return;
+        }
         try {
-            blockingQueue.put(new LogOperation[0]);
+            RestoreShard.awaitAllRestored();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        joinSinglePool(computationPool);
+        joinSinglePool(restorePool);
+        throwIfScanFailed();
 
     }
 
+    // tables one by one, in `schema.table` order, each into its own sink
     private static void secondPhaseComputation() {
-        RestoreComputation.parallelEvalAndSend(evalSendPool);
+        for (TableSchema tableSchema : TableRegistry.selectedTables()) {
+            ResultSink resultSink = TableRegistry.sinkOf(tableSchema);
+            if (isCompactWire) {
+                resultSink.send(CompactResultCodec.headerOf(tableSchema));
+            }
+            RestoreComputation.parallelEvalAndSend(evalSendPool, tableSchema, resultSink,
+                    isZeroCopyResult && resultSink instanceof FileRegionSink ? openResultSpool() : null);
+        }
         joinSinglePool(evalSendPool);
     }
 
+    // split compute: the layout may complete after the last operation in range, the client needs its output order
+    private static void finishOperationStreams() {
+        for (TableSchema tableSchema : TableRegistry.selectedTables()) {
+            tableSchema.streamWriter.finish();
+        }
+    }
+
+    // all tables into one sink, each table key-ordered
     public static void globalComputation(ArrayList<String> srcFilePaths,
-                                         long start, long end) throws IOException {
+                                         long start, long end, final ResultSink resultSink) throws IOException {
+        globalComputation(srcFilePaths, start, end, new ResultSinkFactory() {
+            @Override
+            public ResultSink sinkOf(String schemaName, String tableName) {
+                return resultSink;
+            }
+        });
+    }
+
+    // key-ordered result segments of each table are streamed into its sink while eval is still running
+    public static void globalComputation(ArrayList<String> srcFilePaths,
+                                         long start, long end, ResultSinkFactory resultSinkFactory) throws IOException {
+        if (isMaterializing && !Unsigned.isLess(start, materializeRange[0]) && !Unsigned.isLess(materializeRange[1], end)) {
+            materializedComputation(srcFilePaths, start, end, resultSinkFactory);
+            return;
+        }
 //        if (Server.logger != null) {
 //            Server.logger.info("first phase start:" + String.valueOf(System.currentTimeMillis()));
 //        }
         initRange(start, end);
-        firstPhaseComputation(srcFilePaths);
+        PipelineTuning.init(srcFilePaths);
+        TableRegistry.init(resultSinkFactory);
+        PipelineMetrics.register();
+        PipelineMetrics.resetAll();
+        long startTime = System.nanoTime();
+        long[] startOffsets = isCheckpointEnabled && !isSplitCompute ?
+                Checkpoint.load(srcFilePaths, resultSinkFactory) : new long[srcFilePaths.size()];
+        firstPhaseComputation(srcFilePaths, startOffsets);
+        restoreNanos = System.nanoTime() - startTime;
 //        if (Server.logger != null) {
 //            Server.logger.info("first phase end:" + String.valueOf(System.currentTimeMillis()));
 //        }
-        secondPhaseComputation();
+        if (isSplitCompute) {
+            finishOperationStreams();
+        } else {
+            secondPhaseComputation();
+        }
+        evalSendNanos = System.nanoTime() - startTime - restoreNanos;
 //        if (Server.logger != null) {
 //            Server.logger.info("second phase end:" + String.valueOf(System.currentTimeMillis()));
 //        }
     }
 
+    // every table restored over (lo, hi) of -Dsync.materializeRange=lo,hi once, persisted by RangeIndex
+    // later runs over the same input answer any range within it from the persisted rows, as TSV rows
+    private static long[] materializeRange = parseRange(System.getProperty("sync.materializeRange"));
+    public static boolean isMaterializing = materializeRange != null;
+
+    private static long[] parseRange(String range) {
+        if (range == null)
+            return null;
+        String[] bounds = range.split(",");
+        return new long[]{Unsigned.parse(bounds[0].trim()), Unsigned.parse(bounds[1].trim())};
+    }
+
+    // first run: restore and persist, then every run: binary search and sequential read of the persisted rows
+    private static void materializedComputation(ArrayList<String> srcFilePaths,
+                                                long start, long end, ResultSinkFactory resultSinkFactory) throws IOException {
+        long startTime = System.nanoTime();
+        if (!RangeIndex.validate(srcFilePaths, materializeRange)) {
+            initRange(materializeRange[0], materializeRange[1]);
+            PipelineTuning.init(srcFilePaths);
+            ResultSinkFactory writerFactory = RangeIndex.writerFactory();
+            TableRegistry.init(writerFactory);
+            PipelineMetrics.register();
+            PipelineMetrics.resetAll();
+            long[] startOffsets = isCheckpointEnabled ?
+                    Checkpoint.load(srcFilePaths, writerFactory) : new long[srcFilePaths.size()];
+            firstPhaseComputation(srcFilePaths, startOffsets);
+
+            List<String> tableNames = new ArrayList<>();
+            for (TableSchema tableSchema : TableRegistry.selectedTables()) {
+                RangeIndex.Writer writer = (RangeIndex.Writer) TableRegistry.sinkOf(tableSchema);
+                RestoreComputation.parallelEvalAndSend(evalSendPool, tableSchema, writer);
+                writer.finish();
+                tableNames.add(tableSchema.toString());
+            }
+            joinSinglePool(evalSendPool);
+            RangeIndex.saveManifest(srcFilePaths, scannedEnds, materializeRange, tableNames);
+        }
+        restoreNanos = System.nanoTime() - startTime;
+        RangeIndex.answer(start, end, resultSinkFactory);
+        evalSendNanos = System.nanoTime() - startTime - restoreNanos;
+    }
+
+    // server scans and filters, the client restores and evaluates, see OperationStreamWriter
+    public static boolean isSplitCompute = Boolean.getBoolean("sync.splitCompute") && !isMaterializing;
+
+    // result segments as CompactResultCodec frames instead of TSV rows, optionally deflated
+    public static boolean isCompactWire = Boolean.getBoolean("sync.compactWire") && !isMaterializing;
+    public static boolean isWireDeflated = Boolean.getBoolean("sync.wireDeflate");
+
+    // TSV rows formatted into mapped regions of a spool file, shipped by a FileRegionSink with transferTo
+    public static boolean isZeroCopyResult = Boolean.getBoolean("sync.zeroCopyResult");
+    private static ResultSpool resultSpool;
+
+    // one spool for all tables, regions stay valid until closeResultSpool
+    private static ResultSpool openResultSpool() {
+        if (resultSpool == null) {
+            try {
+                resultSpool = new ResultSpool(new File(Constants.MIDDLE_HOME, ResultSpool.FILE_NAME));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return resultSpool;
+    }
+
+    // used by master thread, after the sink shipped every region
+    public static void closeResultSpool() {
+        if (resultSpool != null) {
+            resultSpool.delete();
+            resultSpool = null;
+        }
+    }
+
+    // wall time of the phases of the last globalComputation: load, scan and restore / eval and send
+    public static long restoreNanos;
+    public static long evalSendNanos;
+
+    // restored state of the last globalComputation, a later run only scans what was appended since
+    public static boolean isCheckpointEnabled = true;
+    private static ArrayList<String> scannedFilePaths;
+    private static long[] scannedEnds;
+
+    // used by master thread, after results are delivered, so that it is off the critical path
+    public static void saveCheckpoint() {
+        if (isCheckpointEnabled && !isSplitCompute && scannedFilePaths != null) {
+            Checkpoint.save(scannedFilePaths, scannedEnds);
+        }
+    }
+
+    // restored state of the last globalComputation stays resident, e.g. for a RangeServer
+    // true when (start, end) of the table can be served from it: the table was restored, the range is within
+    // or from the persisted rows of a materialization
+    public static boolean isRangeResident(String schemaName, String tableName, long start, long end) {
+        return isRestoredRange(schemaName, tableName, start, end) || RangeIndex.contains(schemaName, tableName, start, end);
+    }
+
+    private static boolean isRestoredRange(String schemaName, String tableName, long start, long end) {
+        return !isSplitCompute && !Unsigned.isLess(start, pkLowerBound) && !Unsigned.isLess(pkUpperBound, end)
+                && restoredTableOf(schemaName, tableName) != null;
+    }
+
+    // used by range query threads, after isRangeResident
+    public static void evalRange(String schemaName, String tableName, long start, long end, ResultSink resultSink) {
+        if (isRestoredRange(schemaName, tableName, start, end)) {
+            RestoreComputation.evalRange(restoredTableOf(schemaName, tableName), start, end, resultSink);
+            return;
+        }
+        try {
+            RangeIndex.query(schemaName + "." + tableName, start, end, resultSink);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static TableSchema restoredTableOf(String schemaName, String tableName) {
+        for (TableSchema tableSchema : TableRegistry.selectedTables()) {
+            if (tableSchema.schemaName.equals(schemaName) && tableSchema.tableName.equals(tableName))
+                return tableSchema;
+        }
+        return null;
+    }
+
     static long pkLowerBound;
     static long pkUpperBound;
 
@@ -130,14 +312,8 @@ public class PipelinedComputation {
         pkUpperBound = upperBound;
     }
 
+    // unsigned, see Unsigned
     static boolean isKeyInRange(long key) {
-        return pkLowerBound < key && key < pkUpperBound;
-    }
-
-
-    public static void putThingsIntoByteBuffer(ByteBuffer byteBuffer) {
-        for (byte[] bytes : finalResultMap.values()) {
-            byteBuffer.put(bytes);
-        }
+        return Unsigned.isLess(pkLowerBound, key) && Unsigned.isLess(key, pkUpperBound);
     }
 }
@@ -0,0 +1,285 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import com.alibaba.middleware.race.sync.Constants;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.alibaba.middleware.race.sync.Constants.LINE_SPLITTER;
+
+/**
+ * full-keyspace materialization: every table restored over the materialize range once, persisted in MIDDLE_HOME
+ * per table: `schema.table.rows`, its rows in key order as result lines, and `schema.table.index`,
+ * a sparse index of key to offset, an entry per segment and per INDEX_INTERVAL bytes
+ * a range query is a binary search in the index plus a sequential read of the rows
+ * the manifest is only valid for the same input files, a grown file needs a new materialization
+ */
+class RangeIndex {
+    private static final int MAGIC = 0x5943524D;
+    private static final String DIR_NAME = "materialized";
+    private static final String MANIFEST_NAME = "manifest";
+    private static final int INDEX_INTERVAL = 64 * 1024;
+    private static final int READ_SIZE = 4 * 1024 * 1024;
+
+    private static File dir() {
+        return new File(Constants.MIDDLE_HOME + File.separator + DIR_NAME);
+    }
+
+    private static File rowsFile(String tableName) {
+        return new File(dir(), tableName + ".rows");
+    }
+
+    private static File indexFile(String tableName) {
+        return new File(dir(), tableName + ".index");
+    }
+
+    // the one of the last save or validate, in `schema.table` order
+    private static long[] materializedRange;
+    private static List<String> materializedTables;
+
+    // unsigned key of the line starting at offset
+    private static long keyOf(ByteBuffer rows, int offset) {
+        long key = 0;
+        for (int i = offset; rows.get(i) != '\t'; i++) {
+            key = key * 10 + rows.get(i) - '0';
+        }
+        return key;
+    }
+
+    /**
+     * rows of one table, used by master thread as the sink of its eval
+     * segments arrive in key order, an index entry at the first line of each and then every INDEX_INTERVAL bytes
+     */
+    static class Writer implements ResultSink {
+        private final String tableName;
+        private FileChannel rowsChannel;
+        private long rowsLen = 0;
+        private long[] keys = new long[1024];
+        private long[] offsets = new long[1024];
+        private int entryNum = 0;
+
+        Writer(String schemaName, String tableName) {
+            this.tableName = schemaName + "." + tableName;
+        }
+
+        private void addEntry(long key, long offset) {
+            if (entryNum == keys.length) {
+                keys = Arrays.copyOf(keys, entryNum << 1);
+                offsets = Arrays.copyOf(offsets, entryNum << 1);
+            }
+            keys[entryNum] = key;
+            offsets[entryNum++] = offset;
+        }
+
+        @Override
+        public void send(ByteBuffer segment) {
+            int nextEntry = segment.position();
+            for (int offset = segment.position(); offset < segment.limit(); ) {
+                int lineEnd = offset;
+                while (segment.get(lineEnd) != LINE_SPLITTER) {
+                    lineEnd++;
+                }
+                if (offset >= nextEntry) {
+                    addEntry(keyOf(segment, offset), rowsLen + offset - segment.position());
+                    nextEntry = offset + INDEX_INTERVAL;
+                }
+                offset = lineEnd + 1;
+            }
+            try {
+                if (rowsChannel == null)
+                    rowsChannel = new RandomAccessFile(rowsFile(tableName), "rw").getChannel();
+                while (segment.hasRemaining()) {
+                    rowsLen += rowsChannel.write(segment, rowsLen);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // after the last segment, a table without rows gets empty files as well
+        void finish() throws IOException {
+            if (rowsChannel == null)
+                rowsChannel = new RandomAccessFile(rowsFile(tableName), "rw").getChannel();
+            rowsChannel.truncate(rowsLen);
+            rowsChannel.close();
+            try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(tableName)), 1 << 20))) {
+                outputStream.writeInt(entryNum);
+                for (int i = 0; i < entryNum; i++) {
+                    outputStream.writeLong(keys[i]);
+                    outputStream.writeLong(offsets[i]);
+                }
+            }
+        }
+    }
+
+    // used by master thread, before materialization, writers of the previous one are overwritten
+    static ResultSinkFactory writerFactory() {
+        dir().mkdirs();
+        new File(dir(), MANIFEST_NAME).delete();
+        return new ResultSinkFactory() {
+            private final Map<String, Writer> writers = new HashMap<>();
+
+            @Override
+            public synchronized ResultSink sinkOf(String schemaName, String tableName) {
+                String name = schemaName + "." + tableName;
+                Writer writer = writers.get(name);
+                if (writer == null) {
+                    writer = new Writer(schemaName, tableName);
+                    writers.put(name, writer);
+                }
+                return writer;
+            }
+        };
+    }
+
+    // used by master thread, after every table's Writer finished, scannedEnds: file sizes seen by materialization
+    static void saveManifest(List<String> srcFilePaths, long[] scannedEnds, long[] range, List<String> tableNames) {
+        File manifest = new File(dir(), MANIFEST_NAME);
+        File tmpFile = new File(manifest.getPath() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeLong(range[0]);
+            outputStream.writeLong(range[1]);
+            outputStream.writeInt(srcFilePaths.size());
+            for (int i = 0; i < srcFilePaths.size(); i++) {
+                try (RandomAccessFile file = new RandomAccessFile(srcFilePaths.get(i), "r")) {
+                    outputStream.writeUTF(new File(srcFilePaths.get(i)).getAbsolutePath());
+                    outputStream.writeLong(scannedEnds[i]);
+                    outputStream.writeLong(Checkpoint.fingerprintOf(file, scannedEnds[i]));
+                }
+            }
+            outputStream.writeInt(tableNames.size());
+            for (String tableName : tableNames) {
+                outputStream.writeUTF(tableName);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (!tmpFile.renameTo(manifest)) {
+            manifest.delete();
+            tmpFile.renameTo(manifest);
+        }
+        materializedRange = range;
+        materializedTables = tableNames;
+    }
+
+    // used by master thread, true when the manifest covers range and the input files are the materialized ones
+    static boolean validate(List<String> srcFilePaths, long[] range) {
+        File manifest = new File(dir(), MANIFEST_NAME);
+        if (!manifest.exists())
+            return false;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+            if (inputStream.readInt() != MAGIC || inputStream.readLong() != range[0] || inputStream.readLong() != range[1])
+                return false;
+            if (inputStream.readInt() != srcFilePaths.size())
+                return false;
+            for (String srcFilePath : srcFilePaths) {
+                File srcFile = new File(srcFilePath);
+                String path = inputStream.readUTF();
+                long fileSize = inputStream.readLong();
+                long fingerprint = inputStream.readLong();
+                if (!path.equals(srcFile.getAbsolutePath()) || srcFile.length() != fileSize)
+                    return false;
+                try (RandomAccessFile file = new RandomAccessFile(srcFile, "r")) {
+                    if (Checkpoint.fingerprintOf(file, fileSize) != fingerprint)
+                        return false;
+                }
+            }
+            int tableNum = inputStream.readInt();
+            List<String> tableNames = new ArrayList<>(tableNum);
+            for (int i = 0; i < tableNum; i++) {
+                tableNames.add(inputStream.readUTF());
+            }
+            materializedRange = range;
+            materializedTables = tableNames;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // (start, end) of the table can be answered by query, after saveManifest or validate
+    static boolean contains(String schemaName, String tableName, long start, long end) {
+        return materializedRange != null && !Unsigned.isLess(start, materializedRange[0]) && !Unsigned.isLess(materializedRange[1], end)
+                && materializedTables.contains(schemaName + "." + tableName);
+    }
+
+    // used by master thread, every materialized table with a sink, in `schema.table` order
+    static void answer(long start, long end, ResultSinkFactory resultSinkFactory) throws IOException {
+        for (String tableName : materializedTables) {
+            int splitterIndex = tableName.indexOf('.');
+            ResultSink resultSink = resultSinkFactory.sinkOf(tableName.substring(0, splitterIndex), tableName.substring(splitterIndex + 1));
+            if (resultSink != null)
+                query(tableName, start, end, resultSink);
+        }
+    }
+
+    // rows of (start, end) in key order, READ_SIZE bytes per segment
+    static void query(String tableName, long start, long end, ResultSink resultSink) throws IOException {
+        long[] keys;
+        long[] offsets;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile(tableName))))) {
+            int entryNum = inputStream.readInt();
+            keys = new long[entryNum];
+            offsets = new long[entryNum];
+            for (int i = 0; i < entryNum; i++) {
+                keys[i] = inputStream.readLong();
+                offsets[i] = inputStream.readLong();
+            }
+        }
+        try (FileChannel rowsChannel = new RandomAccessFile(rowsFile(tableName), "r").getChannel()) {
+            long rowsLen = rowsChannel.size();
+            long startOffset = rowOffsetOf(rowsChannel, rowsLen, keys, offsets, start + 1);
+            long endOffset = rowOffsetOf(rowsChannel, rowsLen, keys, offsets, end);
+            for (long offset = startOffset; offset < endOffset; ) {
+                ByteBuffer segment = ByteBuffer.allocate((int) Math.min(READ_SIZE, endOffset - offset));
+                while (segment.hasRemaining()) {
+                    offset += rowsChannel.read(segment, offset);
+                }
+                segment.flip();
+                resultSink.send(segment);
+            }
+        }
+    }
+
+    // offset of the first row with a key >= key, rowsLen when there is none
+    private static long rowOffsetOf(FileChannel rowsChannel, long rowsLen, long[] keys, long[] offsets, long key) throws IOException {
+        // 1st: the last entry at most key, the row is in [its offset, offset of the next entry]
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (!Unsigned.isLess(key, keys[mid])) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        long blockStart = high < 0 ? 0 : offsets[high];
+        long blockEnd = high + 1 < keys.length ? offsets[high + 1] : rowsLen;
+
+        // 2nd: sequential read of the block
+        ByteBuffer block = ByteBuffer.allocate((int) (blockEnd - blockStart));
+        while (block.hasRemaining()) {
+            if (rowsChannel.read(block, blockStart + block.position()) < 0)
+                throw new EOFException("rows shorter than their index");
+        }
+        for (int offset = 0; offset < block.limit(); ) {
+            if (!Unsigned.isLess(keyOf(block, offset), key))
+                return blockStart + offset;
+            while (block.get(offset) != LINE_SPLITTER) {
+                offset++;
+            }
+            offset++;
+        }
+        return blockEnd;
+    }
+}
@@ -1,8 +1,8 @@
 package com.alibaba.middleware.race.sync.server2;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.alibaba.middleware.race.sync.Constants.FILED_SPLITTER;
 import static com.alibaba.middleware.race.sync.Constants.LINE_SPLITTER;
@@ -10,25 +10,16 @@ import static com.alibaba.middleware.race.sync.Constants.LINE_SPLITTER;
 
 /**
  * Created by yche on 6/17/17.
- * use once
+ * use once per table, on its first full record (insert or delete carries every column)
  */
 public class RecordField {
-    public static Map<ByteBuffer, Integer> fieldIndexMap = new HashMap<>();
-    static int[] fieldSkipLen;
-    public static int FILED_NUM;
-    static int KEY_LEN;
-
-    public static boolean isInit() {
-        return fieldIndexMap.size() > 0;
-    }
-
-    private int nextIndex = 0;
-    private int nextFieldIndex = 0;
+    private int nextIndex;
     private ByteBuffer mappedByteBuffer;
-    private ByteBuffer myBuffer = ByteBuffer.allocate(1024);
 
-    public RecordField(ByteBuffer mappedByteBuffer) {
+    // keyEndIndex: `|` after the pk descriptor
+    RecordField(ByteBuffer mappedByteBuffer, int keyEndIndex) {
         this.mappedByteBuffer = mappedByteBuffer;
+        this.nextIndex = keyEndIndex;
     }
 
     // stop at `|`
@@ -42,50 +33,34 @@ public class RecordField {
     }
 
     // stop at `|`
-    private ByteBuffer getNextField() {
-        myBuffer.clear();
+    private byte[] getNextField() {
         if (mappedByteBuffer.get(nextIndex) == FILED_SPLITTER) {
             nextIndex++;
         }
-        byte myByte;
-        while ((myByte = mappedByteBuffer.get(nextIndex)) != FILED_SPLITTER) {
-            myBuffer.put(myByte);
+        int start = nextIndex;
+        while (mappedByteBuffer.get(nextIndex) != FILED_SPLITTER) {
             nextIndex++;
         }
-        myBuffer.flip();
-        ByteBuffer retByteBuffer = ByteBuffer.allocate(myBuffer.limit());
-        retByteBuffer.put(myBuffer);
-        retByteBuffer.flip();
-        return retByteBuffer;
-    }
-
-    public void initFieldIndexMap() {
-        // mysql, ts, schema, table, op,
-        for (int i = 0; i < 5; i++) {
-            skipField();
+        byte[] field = new byte[nextIndex - start];
+        for (int i = 0; i < field.length; i++) {
+            field[i] = mappedByteBuffer.get(start + i);
         }
-        // pk name
-        ByteBuffer keyBuffer = getNextField();
-        KEY_LEN = keyBuffer.limit();
+        return field;
+    }
 
-        // prev val, cur val
+    void initColumnLayout(TableSchema tableSchema) {
+        // pk prev val, cur val
         for (int i = 0; i < 2; i++) {
             skipField();
         }
 
         // peek next char after `|`
+        List<byte[]> descriptors = new ArrayList<>();
         while (mappedByteBuffer.get(nextIndex + 1) != LINE_SPLITTER) {
-            ByteBuffer nextField = getNextField();
-            fieldIndexMap.put(nextField, nextFieldIndex);
-            nextFieldIndex++;
+            descriptors.add(getNextField());
             skipField();
             skipField();
         }
-
-        FILED_NUM = fieldIndexMap.size();
-        fieldSkipLen = new int[FILED_NUM];
-        for (Map.Entry<ByteBuffer, Integer> entry : fieldIndexMap.entrySet()) {
-            fieldSkipLen[entry.getValue()] = entry.getKey().limit() + 1;
-        }
+        tableSchema.completeLayout(descriptors);
     }
 }
@@ -1,15 +1,13 @@
 package com.alibaba.middleware.race.sync.server2;
 
-import com.alibaba.middleware.race.sync.server2.operations.*;
-
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 import static com.alibaba.middleware.race.sync.Constants.*;
+import static com.alibaba.middleware.race.sync.server2.FieldNameMatcher.NO_MATCH;
 import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.isKeyInRange;
-import static com.alibaba.middleware.race.sync.server2.RecordField.fieldSkipLen;
+import static com.alibaba.middleware.race.sync.server2.operations.NonDeleteOperation.NULL_VALUE;
 
 /**
  * Created by yche on 6/18/17.
@@ -19,59 +17,114 @@ public class RecordScanner {
     // input
     private ByteBuffer mappedByteBuffer;
     private int endIndex;   // exclusive
+    // reads of 8 bytes from here on fall back to single bytes
+    private int lastWordIndex;
 
     // intermediate states
-    private final ByteBuffer tmpBuffer = ByteBuffer.allocate(8);
+    private ByteBuffer tmpBuffer = ByteBuffer.allocate(8);
     private int nextIndex; // start from startIndex
 
-    private final ArrayList<LogOperation> localOperations = new ArrayList<>();
-    private final Future<?> prevFuture;
-    private int primaryKeyDigitNum = 0;
+    // by table id, only tables seen by this scanner
+    private final ArrayList<TableSchema> scannedTables = new ArrayList<>();
+    // by table id, then by restore shard, acquired on the first operation of the shard
+    private final ArrayList<OperationBuffer[]> tableBuffers = new ArrayList<>();
 
-    public RecordScanner(ByteBuffer mappedByteBuffer, int startIndex, int endIndex, Future<?> prevFuture) {
-        this.mappedByteBuffer = mappedByteBuffer.asReadOnlyBuffer(); // get a view, with local position, limit
-        this.nextIndex = startIndex;
-        this.endIndex = endIndex;
-        this.prevFuture = prevFuture;
+    // table and column layout of the current record
+    private TableSchema tableSchema;
+    private TableSchema.ColumnLayout layout;
+    private OperationBuffer[] localBuffers;
+
+    // chunk summary: every touched key, regardless of range
+    private long minTouchedKey = Unsigned.MAX_VALUE;
+    private long maxTouchedKey = 0;
+    private int insertNum = 0;
+    private int updateNum = 0;
+    private int deleteNum = 0;
+
+    public RecordScanner(ByteBuffer mappedByteBuffer, int startIndex, int endIndex) {
+        reuse(mappedByteBuffer, startIndex, endIndex);
+        tmpBuffer.order(ByteOrder.LITTLE_ENDIAN);
     }
 
     void reuse(ByteBuffer mappedByteBuffer, int startIndex, int endIndex) {
-        this.mappedByteBuffer = mappedByteBuffer.asReadOnlyBuffer();
+        // get a view, with local position, limit, and the byte order of Swar
+        this.mappedByteBuffer = mappedByteBuffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
         this.nextIndex = startIndex;
         this.endIndex = endIndex;
+        this.lastWordIndex = this.mappedByteBuffer.limit() - 8;
     }
 
-    private void skipField(int index) {
-        switch (index) {
-            case 0:
-                nextIndex += 4;
-                break;
-            case 1:
-                nextIndex += 4;
-                if (mappedByteBuffer.get(nextIndex) != FILED_SPLITTER)
-                    nextIndex += 3;
-                break;
-            case 2:
-                nextIndex += 4;
-                break;
-            default:
-                nextIndex += 3;
-                while (mappedByteBuffer.get(nextIndex) != FILED_SPLITTER) {
-                    nextIndex++;
-                }
+    private void touchKey(long key) {
+        if (Unsigned.isLess(key, minTouchedKey))
+            minTouchedKey = key;
+        if (Unsigned.isLess(maxTouchedKey, key))
+            maxTouchedKey = key;
+    }
+
+    // stop at `|`, value length unknown for any schema
+    private void skipField() {
+        int start = nextIndex + 1;
+        if (start <= lastWordIndex) {
+            // most values end within one word
+            int len = Swar.firstIndexIn(mappedByteBuffer.getLong(start), Swar.PIPES);
+            if (len != 8) {
+                nextIndex = start + len;
+                return;
+            }
         }
+        nextIndex = Swar.indexOf(mappedByteBuffer, start, Swar.PIPES, FILED_SPLITTER);
     }
 
-    private void skipHeader() {
-        nextIndex += 20;
-        while ((mappedByteBuffer.get(nextIndex)) != FILED_SPLITTER) {
-            nextIndex++;
+    // to the last `|` of the line, for records whose values are not needed
+    private void skipLine() {
+        nextIndex = Swar.indexOf(mappedByteBuffer, nextIndex + 1, Swar.LINES, LINE_SPLITTER) - 1;
+    }
+
+    // route by `schema|table`, compared in place with the table of the previous record
+    private void scanTable() {
+        // binlog id, ts
+        skipField();
+        skipField();
+        int nameSplitterIndex = nextIndex;
+        if (tableSchema != null && tableSchema.isNameAt(mappedByteBuffer, nameSplitterIndex)) {
+            nextIndex += tableSchema.nameBytes.length + 1;
+        } else {
+            // schema, table
+            skipField();
+            skipField();
+            tableSchema = TableRegistry.lookup(mappedByteBuffer, nameSplitterIndex, nextIndex);
+            localBuffers = shardBuffersOf(tableSchema);
         }
-        nextIndex += 34;
+        layout = tableSchema.layout();
+    }
+
+    // null for tables which are not selected, they have no restore shards
+    OperationBuffer[] shardBuffersOf(TableSchema tableSchema) {
+        while (tableBuffers.size() <= tableSchema.tableId) {
+            scannedTables.add(null);
+            tableBuffers.add(null);
+        }
+        if (scannedTables.get(tableSchema.tableId) == null) {
+            scannedTables.set(tableSchema.tableId, tableSchema);
+            if (tableSchema.isSelected)
+                tableBuffers.set(tableSchema.tableId, new OperationBuffer[tableSchema.restoreEngine.shards.length]);
+        }
+        return tableBuffers.get(tableSchema.tableId);
+    }
+
+    // buffer of the restore shard which owns key, in the current table
+    private OperationBuffer bufferOf(long key) {
+        int shardIndex = tableSchema.restoreEngine.shardIndexOf(key);
+        OperationBuffer operationBuffer = localBuffers[shardIndex];
+        if (operationBuffer == null) {
+            operationBuffer = OperationBuffer.acquire();
+            localBuffers[shardIndex] = operationBuffer;
+        }
+        return operationBuffer;
     }
 
     private void skipKey() {
-        nextIndex += RecordField.KEY_LEN + 3;
+        nextIndex += tableSchema.keyJumpLen;
     }
 
     private void skipNull() {
@@ -79,23 +132,53 @@ public class RecordScanner {
     }
 
     private void skipFieldForInsert(int index) {
-        nextIndex += fieldSkipLen[index];
+        nextIndex += layout.skipLens[index];
     }
 
     private void getNextBytesIntoTmp() {
-        nextIndex++;
-
+        int start = nextIndex + 1;
         tmpBuffer.clear();
-        byte myByte;
-        while ((myByte = mappedByteBuffer.get(nextIndex)) != FILED_SPLITTER) {
-            tmpBuffer.put(myByte);
-            nextIndex++;
+        if (start <= lastWordIndex) {
+            // up to 8 bytes: one word copy, the bytes after the value are cut by limit
+            long word = mappedByteBuffer.getLong(start);
+            int len = Swar.firstIndexIn(word, Swar.PIPES);
+            if (len != 8) {
+                tmpBuffer.putLong(0, word);
+                tmpBuffer.limit(len);
+                nextIndex = start + len;
+                return;
+            }
+        }
+        nextIndex = Swar.indexOf(mappedByteBuffer, start, Swar.PIPES, FILED_SPLITTER);
+        if (tmpBuffer.capacity() < nextIndex - start) {
+            growTmpBuffer(nextIndex - start);
+        }
+        for (int i = start; i < nextIndex; i++) {
+            tmpBuffer.put(mappedByteBuffer.get(i));
         }
         tmpBuffer.flip();
     }
 
+    private void growTmpBuffer(int minCapacity) {
+        int capacity = tmpBuffer.capacity() << 1;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        tmpBuffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // unsigned, no sign in the log: 10 * result + digit wraps mod 2^64, exact up to 2^64-1, see Unsigned
     private long getNextLong() {
         nextIndex++;
+        if (nextIndex <= lastWordIndex) {
+            // up to 7 digits and the `|` in one word, e.g. keys and scores
+            long word = mappedByteBuffer.getLong(nextIndex);
+            int digitNum = Swar.firstIndexIn(word, Swar.PIPES);
+            if (digitNum > 0 && digitNum < 8) {
+                nextIndex += digitNum;
+                return Swar.parseDigits(word, digitNum);
+            }
+        }
 
         byte tmpByte;
         long result = 0L;
@@ -106,134 +189,192 @@ public class RecordScanner {
         return result;
     }
 
-    private long getNextLongForUpdate() {
-        primaryKeyDigitNum = 0;
-        nextIndex++;
+    // numeric value or NULL
+    private long getNextNumber() {
+        if (mappedByteBuffer.get(nextIndex + 1) == 'N') {
+            skipField();
+            return NULL_VALUE;
+        }
+        return getNextLong();
+    }
 
-        byte tmpByte;
-        long result = 0L;
-        while ((tmpByte = mappedByteBuffer.get(nextIndex)) != FILED_SPLITTER) {
-            nextIndex++;
-            primaryKeyDigitNum++;
-            result = (10 * result) + (tmpByte - '0');
+    private void addNextValue(int index, OperationBuffer operationBuffer) {
+        if (layout.isStringColumn[index]) {
+            getNextBytesIntoTmp();
+            operationBuffer.addString(index, layout.dictionaries[index], tmpBuffer);
+        } else {
+            operationBuffer.addNumber(index, getNextNumber());
         }
-        return result;
     }
 
     private int skipFieldName() {
         // stop at '|'
-        if (mappedByteBuffer.get(nextIndex + 1) == 'f') {
-            nextIndex += 15;
-            return 0;
-        } else if (mappedByteBuffer.get(nextIndex + 1) == 'l') {
-            nextIndex += 14;
-            return 1;
-        } else {
-            if (mappedByteBuffer.get(nextIndex + 2) == 'e') {
-                nextIndex += 8;
-                return 2;
-            } else if (mappedByteBuffer.get(nextIndex + 6) == ':') {
-                nextIndex += 10;
-                return 3;
-            } else {
-                nextIndex += 11;
-                return 4;
-            }
+        int index = layout.fieldNameMatcher.match(mappedByteBuffer, nextIndex);
+        if (!layout.isComplete() && (index == NO_MATCH || !layout.isDescriptorAt(index, mappedByteBuffer, nextIndex))) {
+            // an update before any full record of the table
+            index = registerNextFieldName();
+        } else if (index == NO_MATCH) {
+            throw new IllegalStateException("unknown column in " + tableSchema + " at index " + nextIndex);
         }
+        nextIndex += layout.skipLens[index];
+        return index;
     }
 
-    private LogOperation scanOneRecord() {
-        // 1st: skip: mysql, ts, schema, table
-        skipHeader();
+    private int registerNextFieldName() {
+        int start = nextIndex + 1;
+        int end = start;
+        while (mappedByteBuffer.get(end) != FILED_SPLITTER) {
+            end++;
+        }
+        byte[] descriptor = new byte[end - start];
+        for (int i = 0; i < descriptor.length; i++) {
+            descriptor[i] = mappedByteBuffer.get(start + i);
+        }
+        int index = tableSchema.registerColumn(descriptor);
+        layout = tableSchema.layout();
+        return index;
+    }
+
+    // operations of selected tables in range are packed into the buffers of their shards
+    private void scanOneRecord() {
+        // 1st: skip: mysql, ts, route by schema, table
+        scanTable();
 
         // 2nd: parse KeyOperation
         byte operation = mappedByteBuffer.get(nextIndex + 1);
-        LogOperation logOperation = null;
+        OperationBuffer operationBuffer = null;
         boolean flag = false;
         // skip one splitter and operation byte
         skipKey();
+        if (!layout.isComplete() && operation != U_OPERATION) {
+            new RecordField(mappedByteBuffer, nextIndex).initColumnLayout(tableSchema);
+            layout = tableSchema.layout();
+        }
+        boolean isSelected = tableSchema.isSelected;
 
         if (operation == U_OPERATION) {
             // update
-            long prevKey = getNextLongForUpdate();
-
-            if (nextIndex + primaryKeyDigitNum + 2 < mappedByteBuffer.limit() &&
-                    mappedByteBuffer.get(nextIndex + primaryKeyDigitNum + 1) == '|' &&
-                    (mappedByteBuffer.get(nextIndex + primaryKeyDigitNum + 2) == 's' ||
-                            mappedByteBuffer.get(nextIndex + primaryKeyDigitNum + 2) == 'f' ||
-                            mappedByteBuffer.get(nextIndex + primaryKeyDigitNum + 2) == 'l')) {
-                nextIndex += primaryKeyDigitNum + 1;
-                if (isKeyInRange(prevKey)) {
+            updateNum++;
+            long prevKey = getNextLong();
+            long curKey = getNextLong();
+            touchKey(prevKey);
+
+            if (prevKey == curKey) {
+                if (isSelected && isKeyInRange(prevKey)) {
                     flag = true;
-                    logOperation = new UpdateOperation(prevKey);
+                    operationBuffer = bufferOf(prevKey);
+                    operationBuffer.beginRecord(OperationBuffer.UPDATE, prevKey);
                 }
-                int localIndex = skipFieldName();
-                skipField(localIndex);
-                getNextBytesIntoTmp();
-                if (flag)
-                    ((UpdateOperation) logOperation).addData(localIndex, tmpBuffer);
             } else {
-                if (isKeyInRange(prevKey)) {
-                    localOperations.add(new DeleteOperation(prevKey));
+                // pk change: delete prev, insert cur, previous columns not carried
+                touchKey(curKey);
+                if (isSelected && isKeyInRange(prevKey)) {
+                    bufferOf(prevKey).addDelete(prevKey);
                 }
-                long curKey = getNextLong();
-                if (isKeyInRange(curKey)) {
-                    logOperation = new InsertOperation(curKey);
+                if (isSelected && isKeyInRange(curKey)) {
+                    flag = true;
+                    operationBuffer = bufferOf(curKey);
+                    operationBuffer.beginRecord(OperationBuffer.INSERT, curKey);
                 }
             }
+
+            if (!flag && layout.isComplete()) {
+                skipLine();
+            }
+            while (mappedByteBuffer.get(nextIndex + 1) != LINE_SPLITTER) {
+                int localIndex = skipFieldName();
+                skipField();
+                if (flag)
+                    addNextValue(localIndex, operationBuffer);
+                else
+                    skipField();
+            }
         } else if (operation == I_OPERATION) {
-            // insert: pre(null) -> cur
+            // insert: pre(null) -> cur, columns in the order of the layout
+            insertNum++;
             skipNull();
             long pk = getNextLong();
-            if (isKeyInRange(pk)) {
-                logOperation = new InsertOperation(pk);
+            touchKey(pk);
+            if (isSelected && isKeyInRange(pk)) {
+                operationBuffer = bufferOf(pk);
+                operationBuffer.beginRecord(OperationBuffer.INSERT, pk);
                 flag = true;
             }
 
-            int localIndex = 0;
-            while (mappedByteBuffer.get(nextIndex + 1) != LINE_SPLITTER) {
+            if (!flag) {
+                skipLine();
+            }
+            int[] outputOrder = layout.outputOrder;
+            for (int i = 0; mappedByteBuffer.get(nextIndex + 1) != LINE_SPLITTER; i++) {
+                int localIndex = outputOrder[i];
                 skipFieldForInsert(localIndex);
                 skipNull();
-                getNextBytesIntoTmp();
                 if (flag)
-                    ((InsertOperation) logOperation).addData(localIndex, tmpBuffer);
-                localIndex++;
+                    addNextValue(localIndex, operationBuffer);
+                else
+                    skipField();
             }
         } else {
             // delete: pre -> cur(null)
+            deleteNum++;
             long pk = getNextLong();
-            if (isKeyInRange(pk)) {
-                logOperation = new DeleteOperation(pk);
+            touchKey(pk);
+            if (isSelected && isKeyInRange(pk)) {
+                bufferOf(pk).addDelete(pk);
             }
             skipNull();
+            if (layout.isComplete()) {
+                skipLine();
+            }
             while (mappedByteBuffer.get(nextIndex + 1) != LINE_SPLITTER) {
-                int localIndex = skipFieldName();
-                skipField(localIndex);
+                skipFieldName();
+                skipField();
                 skipNull();
             }
         }
 
         // skip '|' and `\n`
         nextIndex += 2;
-        return logOperation;
     }
 
     void compute() {
         while (nextIndex < endIndex) {
-            LogOperation logOperation = scanOneRecord();
-            if (logOperation != null) {
-                localOperations.add(logOperation);
-            }
+            scanOneRecord();
         }
     }
 
-    void waitForSend() throws InterruptedException, ExecutionException {
-        // wait for producing tasks
-        LogOperation[] logOperations = localOperations.toArray(new LogOperation[0]);
-        localOperations.clear();
-        prevFuture.get();
-        if (logOperations.length != 0) {
-            PipelinedComputation.blockingQueue.put(logOperations);
+    void recordSummary(ChunkSummaryIndex chunkSummaryIndex, int sliceIndex) {
+        chunkSummaryIndex.record(sliceIndex, minTouchedKey, maxTouchedKey, insertNum, updateNum, deleteNum);
+    }
+
+    // after a failed scan: the operations of the slice are dropped, its buffers go back to the pool
+    void discard() {
+        for (OperationBuffer[] shardBuffers : tableBuffers) {
+            if (shardBuffers == null)
+                continue;
+            for (OperationBuffer operationBuffer : shardBuffers) {
+                if (operationBuffer != null)
+                    operationBuffer.recycle();
+            }
         }
+        scannedTables.clear();
+        tableBuffers.clear();
+        tableSchema = null;
+        localBuffers = null;
+    }
+
+    // sequence: claimed for this slice, the ring hands the operations to restore in sequence order
+    void publishInOrder(ReorderRing reorderRing, long sequence) {
+        // already split by table and key-range shard while scanning, the buffers are handed over as they are
+        ReorderRing.ScannedBatch scannedBatch = new ReorderRing.ScannedBatch(
+                scannedTables.toArray(new TableSchema[scannedTables.size()]),
+                tableBuffers.toArray(new OperationBuffer[tableBuffers.size()][]));
+        // a reused scanner starts with fresh buffers
+        scannedTables.clear();
+        tableBuffers.clear();
+        tableSchema = null;
+        localBuffers = null;
+        // never waits for preceding slices
+        reorderRing.publish(sequence, scannedBatch);
     }
 }
@@ -0,0 +1,106 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * restores the log order of scanned slices, by a global sequence number claimed by the mediator in slice order
+ * scanners publish out of order and never wait for each other, whoever fills the next expected slot
+ * drains the contiguous run of filled slots into the restore engines, so restore shards always see the log order
+ */
+class ReorderRing {
+    // packed operations of one slice, split by table and key-range shard
+    static class ScannedBatch {
+        // by table id, null: not seen by the slice, or not selected
+        final TableSchema[] tables;
+        final OperationBuffer[][] shardBuffers;
+
+        ScannedBatch(TableSchema[] tables, OperationBuffer[][] shardBuffers) {
+            this.tables = tables;
+            this.shardBuffers = shardBuffers;
+        }
+
+        void publishToRestore() {
+            try {
+                for (int i = 0; i < shardBuffers.length; i++) {
+                    if (shardBuffers[i] == null)
+                        continue;
+                    if (tables[i].streamWriter != null) {
+                        tables[i].streamWriter.write(shardBuffers[i]);
+                    } else {
+                        tables[i].restoreEngine.publish(shardBuffers[i]);
+                    }
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<ScannedBatch> slots;
+
+    // drain side, nextDrainSequence is only touched while holding isDraining
+    private final AtomicBoolean isDraining = new AtomicBoolean(false);
+    private long nextDrainSequence = 0;
+    // all sequences before are drained
+    private final AtomicLong drainedSequence = new AtomicLong(0);
+
+    // claim side, a single claimer
+    private long nextClaimSequence = 0;
+    private volatile Thread waitingClaimer;
+
+    ReorderRing(int minCapacity) {
+        int capacity = 1;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    // used by mediator thread, blocks while the slice `capacity` sequences before is not drained
+    long claim() {
+        long sequence = nextClaimSequence++;
+        long startTime = System.nanoTime();
+        if (sequence - drainedSequence.get() >= slots.length()) {
+            waitingClaimer = Thread.currentThread();
+            while (sequence - drainedSequence.get() >= slots.length()) {
+                LockSupport.parkNanos(this, 1000000L);
+            }
+            waitingClaimer = null;
+        }
+        PipelineMetrics.ringClaimWait.record(System.nanoTime() - startTime);
+        return sequence;
+    }
+
+    // used by transform thread pool, exactly once per claimed sequence, empty slices included
+    void publish(long sequence, ScannedBatch scannedBatch) {
+        slots.set((int) sequence & mask, scannedBatch);
+        drain();
+    }
+
+    private void drain() {
+        while (isDraining.compareAndSet(false, true)) {
+            long next = nextDrainSequence;
+            ScannedBatch scannedBatch;
+            while ((scannedBatch = slots.get((int) next & mask)) != null) {
+                slots.set((int) next & mask, null);
+                scannedBatch.publishToRestore();
+                next++;
+                drainedSequence.set(next);
+                Thread claimer = waitingClaimer;
+                if (claimer != null) {
+                    LockSupport.unpark(claimer);
+                }
+            }
+            nextDrainSequence = next;
+            isDraining.set(false);
+            // a slot filled after the last get, but before isDraining is reset
+            if (slots.get((int) next & mask) == null)
+                return;
+        }
+    }
+}
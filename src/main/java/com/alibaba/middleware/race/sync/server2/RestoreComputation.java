@@ -1,53 +1,215 @@
 package com.alibaba.middleware.race.sync.server2;
 
-import com.alibaba.middleware.race.sync.server2.operations.*;
+import com.alibaba.middleware.race.sync.server2.operations.InsertOperation;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.EVAL_WORKER_NUM;
-import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.finalResultMap;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.isCompactWire;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.isWireDeflated;
 
 /**
  * Created by yche on 6/18/17.
  */
 public class RestoreComputation {
-    public static LogOperation[] ycheArr = new LogOperation[8 * 1024 * 1024];
+    // used by one restore shard, store: the shard's rows, records are decoded in place in log order
+    static void compute(OperationBuffer operationBuffer, ShardRowStore store) {
+        long[] words = operationBuffer.words;
+        int index = 0;
+        while (index < operationBuffer.size) {
+            long header = words[index];
+            int slot = store.slotOf(words[index + 1]);
+            index += 2;
+            int opType = OperationBuffer.opTypeOf(header);
+            if (opType == OperationBuffer.DELETE) {
+                store.clearLive(slot);
+                continue;
+            }
+            // insert: overwrite every column, update: merge into the row, an empty one if the key is not live
+            if (opType == OperationBuffer.INSERT || !store.isLive(slot)) {
+                store.clearRow(slot);
+                store.setLive(slot);
+            }
+            for (int end = index + 2 * OperationBuffer.pairNumOf(header); index < end; index += 2) {
+                long column = words[index];
+                store.writeColumn(slot, OperationBuffer.columnIndexOf(column), words[index + 1],
+                        operationBuffer.rawValueOf(column));
+            }
+        }
+    }
+
+    // slots per eval task, each task produces one key-ordered result segment
+    static int SEGMENT_SLOTS = 64 * 1024;
 
-    static void compute(LogOperation[] logOperations) {
-        for (LogOperation logOperation : logOperations) {
-            logOperation.act();
+    // a key-ordered result segment, heap bytes or a region of the result spool
+    private static class Segment {
+        final ByteBuffer bytes;
+        final long spoolPosition;
+        final int length;
+
+        Segment(ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.spoolPosition = -1;
+            this.length = bytes.limit();
+        }
+
+        Segment(long spoolPosition, int length) {
+            this.bytes = null;
+            this.spoolPosition = spoolPosition;
+            this.length = length;
         }
     }
 
-    private static class EvalTask implements Runnable {
-        int start;
-        int end;
-        LogOperation[] logOperations;
+    private static class EvalTask implements Callable<Segment> {
+        TableSchema tableSchema;
+        ShardRowStore store;
+        int startSlot;
+        int endSlot;
+        ResultSpool resultSpool;
 
-        EvalTask(int start, int end, LogOperation[] logOperations) {
-            this.start = start;
-            this.end = end;
-            this.logOperations = logOperations;
+        EvalTask(TableSchema tableSchema, ShardRowStore store, int startSlot, int endSlot, ResultSpool resultSpool) {
+            this.tableSchema = tableSchema;
+            this.store = store;
+            this.startSlot = startSlot;
+            this.endSlot = endSlot;
+            this.resultSpool = resultSpool;
         }
 
         @Override
-        public void run() {
-            for (int i = start; i < end; i++) {
-                InsertOperation insertOperation = (InsertOperation) logOperations[i];
-                if (insertOperation != null)
-                    finalResultMap.put(insertOperation.relevantKey, insertOperation.getOneLineBytesEfficient());
+        public Segment call() throws IOException {
+            long startTime = System.nanoTime();
+            Segment segment;
+            if (isCompactWire) {
+                segment = new Segment(CompactResultCodec.segmentOf(tableSchema, store, startSlot, endSlot, isWireDeflated));
+            } else if (resultSpool != null) {
+                segment = spoolSegment();
+            } else {
+                segment = new Segment(heapSegment());
+            }
+            PipelineMetrics.evalSegment.record(System.nanoTime() - startTime);
+            return segment;
+        }
+
+        // rows formatted in place, no byte[] per line
+        // sized up front by the live rows of the segment times the first line, it only grows on longer lines
+        private ByteBuffer heapSegment() {
+            int columnNum = tableSchema.columnNum();
+            InsertOperation cursor = new InsertOperation(-1, columnNum);
+            ByteBuffer segment = null;
+            for (int slot = store.nextLiveSlot(startSlot, endSlot); slot != -1;
+                 slot = store.nextLiveSlot(slot + 1, endSlot)) {
+                cursor.loadFromStore(store, columnNum, slot);
+                int lineLength = cursor.lineLength(tableSchema);
+                if (segment == null) {
+                    long estimate = (long) store.liveNum(slot, endSlot) * (lineLength + (lineLength >>> 3));
+                    segment = ByteBuffer.allocate((int) Math.min(estimate, Integer.MAX_VALUE >>> 1));
+                } else if (segment.remaining() < lineLength) {
+                    ByteBuffer largerSegment = ByteBuffer.allocate(Math.max(segment.capacity() + (segment.capacity() >>> 1),
+                            segment.position() + lineLength));
+                    segment.flip();
+                    largerSegment.put(segment);
+                    segment = largerSegment;
+                }
+                cursor.putLine(tableSchema, segment);
             }
+            if (segment == null)
+                return ByteBuffer.allocate(0);
+            segment.flip();
+            return segment;
+        }
+
+        // 1st: exact segment length from the columns, 2nd: rows straight into a mapped region of the spool
+        // without FileUtil.canUnmap every region would stay mapped until a GC, rows are then written from the heap
+        private Segment spoolSegment() throws IOException {
+            if (!FileUtil.canUnmap) {
+                ByteBuffer rows = heapSegment();
+                int length = rows.limit();
+                if (length == 0)
+                    return new Segment(rows);
+                long spoolPosition = resultSpool.reserve(length);
+                resultSpool.write(spoolPosition, rows);
+                return new Segment(spoolPosition, length);
+            }
+            int length = store.lineBytes(startSlot, endSlot);
+            if (length == 0)
+                return new Segment(ByteBuffer.allocate(0));
+
+            long spoolPosition = resultSpool.reserve(length);
+            MappedByteBuffer region = resultSpool.map(spoolPosition, length);
+            int columnNum = tableSchema.columnNum();
+            InsertOperation cursor = new InsertOperation(-1, columnNum);
+            for (int slot = store.nextLiveSlot(startSlot, endSlot); slot != -1;
+                 slot = store.nextLiveSlot(slot + 1, endSlot)) {
+                cursor.loadFromStore(store, columnNum, slot);
+                cursor.lineLength(tableSchema);
+                cursor.putLine(tableSchema, region);
+            }
+            FileUtil.unmap(region);
+            return new Segment(spoolPosition, length);
+        }
+    }
+
+    // used by master thread, one table at a time, shards in key order
+    // at most EVAL_WORKER_NUM * 2 segments in flight, a blocking sink throttles eval
+    static void parallelEvalAndSend(ExecutorService evalThreadPool, TableSchema tableSchema, ResultSink resultSink) {
+        parallelEvalAndSend(evalThreadPool, tableSchema, resultSink, null);
+    }
+
+    // resultSpool: not null only for a FileRegionSink, segments are then shipped as regions of the spool
+    static void parallelEvalAndSend(ExecutorService evalThreadPool, TableSchema tableSchema, ResultSink resultSink,
+                                    ResultSpool resultSpool) {
+        tableSchema.restoreEngine.seal();
+        int maxInFlight = EVAL_WORKER_NUM * 2;
+        Queue<Future<Segment>> inFlightSegments = new ArrayDeque<>(maxInFlight);
+        try {
+            for (RestoreShard shard : tableSchema.restoreEngine.shards) {
+                ShardRowStore store = shard.store;
+                for (int i = 0; i < store.capacity; i += SEGMENT_SLOTS) {
+                    if (inFlightSegments.size() == maxInFlight) {
+                        sendSegment(inFlightSegments.poll().get(), resultSink, resultSpool);
+                    }
+                    inFlightSegments.add(evalThreadPool.submit(
+                            new EvalTask(tableSchema, store, i, Math.min(i + SEGMENT_SLOTS, store.capacity), resultSpool)));
+                }
+            }
+            while (!inFlightSegments.isEmpty()) {
+                sendSegment(inFlightSegments.poll().get(), resultSink, resultSpool);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
         }
     }
 
-    // used by master thread
-    static void parallelEvalAndSend(ExecutorService evalThreadPool) {
-        LogOperation[] insertOperations = ycheArr;
-        int lowerBound = (int) PipelinedComputation.pkLowerBound;
-        int upperBound = (int) PipelinedComputation.pkUpperBound;
-        int avgTask = (upperBound - lowerBound) / EVAL_WORKER_NUM;
-        for (int i = lowerBound; i < upperBound; i += avgTask) {
-            evalThreadPool.execute(new EvalTask(i, Math.min(i + avgTask, upperBound), insertOperations));
+    // used by a range query thread, after restore: rows of (start, end) in key order, a heap segment per SEGMENT_SLOTS
+    static void evalRange(TableSchema tableSchema, long start, long end, ResultSink resultSink) {
+        for (RestoreShard shard : tableSchema.restoreEngine.shards) {
+            ShardRowStore store = shard.store;
+            int fromSlot = store.lowerSlotOf(start + 1);
+            int toSlot = store.lowerSlotOf(end);
+            for (int i = fromSlot; i < toSlot; i += SEGMENT_SLOTS) {
+                EvalTask evalTask = new EvalTask(tableSchema, store, i, Math.min(i + SEGMENT_SLOTS, toSlot), null);
+                sendSegment(new Segment(evalTask.heapSegment()), resultSink, null);
+            }
+        }
+    }
+
+    private static void sendSegment(Segment segment, ResultSink resultSink, ResultSpool resultSpool) {
+        if (segment.length > 0) {
+            long startTime = System.nanoTime();
+            if (segment.bytes != null) {
+                resultSink.send(segment.bytes);
+            } else {
+                ((FileRegionSink) resultSink).sendRegion(resultSpool.fileChannel, segment.spoolPosition, segment.length);
+            }
+            PipelineMetrics.sinkSend.record(System.nanoTime() - startTime);
         }
     }
 }
@@ -0,0 +1,80 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.restorePool;
+
+/**
+ * one key-range shard of one table, drained by at most one restorePool thread at a time
+ * shards of all tables share restorePool, so independent tables restore in parallel without a thread per shard
+ */
+class RestoreShard implements Runnable {
+    // batches drained by one run, then the thread goes back to the pool for other shards
+    private static final int DRAIN_BATCH_NUM = 16;
+    // batches per shard, sized by PipelineTuning before the shards are created
+    static int RESTORE_QUEUE_DEPTH = 64;
+
+    // published but not yet computed batches of all shards
+    private static final AtomicLong pendingBatchNum = new AtomicLong();
+    private static final Object quiescenceLock = new Object();
+
+    private final BlockingQueue<OperationBuffer> restoreQueue = new ArrayBlockingQueue<>(RESTORE_QUEUE_DEPTH);
+    private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+    final ShardRowStore store;
+
+    RestoreShard(ShardRowStore store) {
+        this.store = store;
+    }
+
+    // used by transform thread pool, in the order of the log
+    void publish(OperationBuffer operationBuffer) throws InterruptedException {
+        pendingBatchNum.incrementAndGet();
+        PipelineMetrics.restoreOccupancy.record(restoreQueue.size());
+        long startTime = System.nanoTime();
+        restoreQueue.put(operationBuffer);
+        PipelineMetrics.restorePublishWait.record(System.nanoTime() - startTime);
+        schedule();
+    }
+
+    private void schedule() {
+        if (isScheduled.compareAndSet(false, true)) {
+            restorePool.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        OperationBuffer operationBuffer;
+        int drainedNum = 0;
+        while (drainedNum < DRAIN_BATCH_NUM && (operationBuffer = restoreQueue.poll()) != null) {
+            long startTime = System.nanoTime();
+            RestoreComputation.compute(operationBuffer, store);
+            PipelineMetrics.restoreBatch.record(System.nanoTime() - startTime);
+            PipelineMetrics.restoredOps.addAndGet(operationBuffer.recordNum);
+            operationBuffer.recycle();
+            drainedNum++;
+        }
+        isScheduled.set(false);
+        // a batch published after the last poll, but before isScheduled is reset
+        if (!restoreQueue.isEmpty()) {
+            schedule();
+        }
+        if (pendingBatchNum.addAndGet(-drainedNum) == 0) {
+            synchronized (quiescenceLock) {
+                quiescenceLock.notifyAll();
+            }
+        }
+    }
+
+    // used by master thread, after all transform tasks finished
+    static void awaitAllRestored() throws InterruptedException {
+        synchronized (quiescenceLock) {
+            while (pendingBatchNum.get() != 0) {
+                quiescenceLock.wait(100);
+            }
+        }
+    }
+}
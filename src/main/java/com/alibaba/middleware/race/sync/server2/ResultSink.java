@@ -0,0 +1,10 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * receives key-ordered result segments from eval, may block to apply backpressure
+ */
+public interface ResultSink {
+    void send(ByteBuffer segment);
+}
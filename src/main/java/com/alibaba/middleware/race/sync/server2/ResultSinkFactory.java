@@ -0,0 +1,9 @@
+package com.alibaba.middleware.race.sync.server2;
+
+/**
+ * per-table result destination, asked once when a table is first seen in the logs
+ * null: the table is not restored at all
+ */
+public interface ResultSinkFactory {
+    ResultSink sinkOf(String schemaName, String tableName);
+}
@@ -0,0 +1,56 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * result segments formatted straight into mapped regions of one spool file in MIDDLE_HOME,
+ * shipped from the page cache by a FileRegionSink, mapped memory does not count against MaxDirectMemorySize
+ */
+class ResultSpool {
+    static final String FILE_NAME = "result.spool";
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    final FileChannel fileChannel;
+    private final AtomicLong nextOffset = new AtomicLong(0);
+
+    ResultSpool(File file) throws IOException {
+        this.file = file;
+        file.getParentFile().mkdirs();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        fileChannel = randomAccessFile.getChannel();
+    }
+
+    // used by eval workers, position of a region of exactly length bytes, regions never overlap
+    long reserve(int length) {
+        return nextOffset.getAndAdd(length);
+    }
+
+    MappedByteBuffer map(long position, int length) throws IOException {
+        return fileChannel.map(FileChannel.MapMode.READ_WRITE, position, length);
+    }
+
+    // a reserved region from the heap, when mapped regions could not be unmapped
+    void write(long position, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += fileChannel.write(bytes, position);
+        }
+    }
+
+    // used by master thread, after the sink shipped every region
+    void delete() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,445 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import com.alibaba.middleware.race.sync.server2.operations.InsertOperation;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.Arrays;
+
+import static com.alibaba.middleware.race.sync.server2.ColumnDictionary.RAW_CODE;
+import static com.alibaba.middleware.race.sync.server2.operations.NonDeleteOperation.ABSENT;
+import static com.alibaba.middleware.race.sync.server2.operations.NonDeleteOperation.NULL_VALUE;
+
+/**
+ * primitive columnar row store of one restore shard of one table
+ * dense: slot = key - baseKey over the whole shard, sparse: slots in order of first touch through a
+ * long-keyed open-addressing map, columns grow with the keys actually seen, reordered by key in seal
+ * bounded: a shard of at most DENSE_MAX_CAPACITY keys starts sparse and turns dense once one key in DENSE_MIN_FILL
+ * of its width was seen, so that memory follows the keys present rather than the width of the shard
+ * only the owning RestoreShard writes, so columns are allocated and widened lazily without locking:
+ * string columns keep dictionary codes, numeric columns start as int and widen to long on the first large value
+ */
+public class ShardRowStore {
+    static final int WORD_BITS = 64;
+    // widest shard which may turn dense, wider ones stay sparse
+    static int DENSE_MAX_CAPACITY = 1 << 24;
+    // a bounded shard turns dense at width / DENSE_MIN_FILL keys seen, a sparse slot costs about 4 dense ones
+    static int DENSE_MIN_FILL = 4;
+    private static final int SPARSE_INITIAL_CAPACITY = 1024;
+    private static final short CODE_ABSENT = -1;
+    private static final int INT_ABSENT = Integer.MIN_VALUE;
+    private static final int INT_NULL = Integer.MIN_VALUE + 1;
+
+    private final TableSchema tableSchema;
+    private final long baseKey;
+    int capacity;
+
+    // bounded only: width of the shard once dense, -1 if it stays sparse
+    private final int denseWidth;
+    // sparse only: key -> slot until seal, key of each slot
+    private boolean isSparse;
+    private TLongIntHashMap slotsByKey;
+    private long[] slotKeys;
+    private int slotNum = 0;
+
+    private long[] liveBits;
+    // indexed by column index of TableSchema, null until the column is first written
+    private short[][] codeColumns = new short[0][];
+    private int[][] intColumns = new int[0][];
+    private long[][] longColumns = new long[0][];
+    private byte[][][] rawColumns = new byte[0][][];
+
+    private ShardRowStore(TableSchema tableSchema, long baseKey, int capacity, boolean isSparse, int denseWidth) {
+        this.tableSchema = tableSchema;
+        this.baseKey = baseKey;
+        this.capacity = capacity;
+        this.isSparse = isSparse;
+        this.denseWidth = denseWidth;
+        if (isSparse) {
+            slotsByKey = new TLongIntHashMap(capacity, 0.5f, Long.MIN_VALUE, -1);
+            slotKeys = new long[capacity];
+        }
+    }
+
+    // keys in [baseKey, baseKey + capacity)
+    static ShardRowStore dense(TableSchema tableSchema, long baseKey, int capacity) {
+        return new ShardRowStore(tableSchema, baseKey, capacity, false, capacity);
+    }
+
+    // keys in [baseKey, baseKey + width), sparse until densify, width at most DENSE_MAX_CAPACITY
+    static ShardRowStore bounded(TableSchema tableSchema, long baseKey, int width) {
+        if (width <= DENSE_MIN_FILL * SPARSE_INITIAL_CAPACITY)
+            return dense(tableSchema, baseKey, width);
+        return new ShardRowStore(tableSchema, baseKey, SPARSE_INITIAL_CAPACITY, true, width);
+    }
+
+    // any keys, memory proportional to the keys seen
+    static ShardRowStore sparse(TableSchema tableSchema) {
+        return new ShardRowStore(tableSchema, 0, SPARSE_INITIAL_CAPACITY, true, -1);
+    }
+
+    // restore: sparse assigns the next slot to a new key
+    public int slotOf(long key) {
+        if (!isSparse)
+            return (int) (key - baseKey);
+        int slot = slotsByKey.get(key);
+        if (slot == -1) {
+            slot = slotNum++;
+            if (slot == capacity)
+                grow(capacity << 1);
+            slotKeys[slot] = key;
+            slotsByKey.put(key, slot);
+            if (denseWidth >= 0 && (long) slotNum * DENSE_MIN_FILL >= denseWidth) {
+                densify();
+                return (int) (key - baseKey);
+            }
+        }
+        return slot;
+    }
+
+    // bounded, during restore: every row moves from its sparse slot to slot key - baseKey, the map is dropped
+    private void densify() {
+        int[] denseSlots = new int[slotNum];
+        for (int slot = 0; slot < slotNum; slot++) {
+            denseSlots[slot] = (int) (slotKeys[slot] - baseKey);
+        }
+        for (int i = 0; i < codeColumns.length; i++) {
+            if (codeColumns[i] != null) {
+                short[] column = new short[denseWidth];
+                Arrays.fill(column, CODE_ABSENT);
+                for (int slot = 0; slot < slotNum; slot++) {
+                    column[denseSlots[slot]] = codeColumns[i][slot];
+                }
+                codeColumns[i] = column;
+            }
+            if (intColumns[i] != null) {
+                int[] column = new int[denseWidth];
+                Arrays.fill(column, INT_ABSENT);
+                for (int slot = 0; slot < slotNum; slot++) {
+                    column[denseSlots[slot]] = intColumns[i][slot];
+                }
+                intColumns[i] = column;
+            }
+            if (longColumns[i] != null) {
+                long[] column = new long[denseWidth];
+                Arrays.fill(column, ABSENT);
+                for (int slot = 0; slot < slotNum; slot++) {
+                    column[denseSlots[slot]] = longColumns[i][slot];
+                }
+                longColumns[i] = column;
+            }
+            if (rawColumns[i] != null) {
+                byte[][] column = new byte[denseWidth][];
+                for (int slot = 0; slot < slotNum; slot++) {
+                    column[denseSlots[slot]] = rawColumns[i][slot];
+                }
+                rawColumns[i] = column;
+            }
+        }
+        long[] sparseLiveBits = liveBits;
+        liveBits = null;
+        capacity = denseWidth;
+        for (int slot = 0; slot < slotNum; slot++) {
+            if (sparseLiveBits != null && (sparseLiveBits[slot >>> 6] & (1L << slot)) != 0)
+                setLive(denseSlots[slot]);
+        }
+        isSparse = false;
+        slotsByKey = null;
+        slotKeys = null;
+        slotNum = 0;
+    }
+
+    public long keyOf(int slot) {
+        return isSparse ? slotKeys[slot] : baseKey + slot;
+    }
+
+    // eval: first slot with a key >= key, capacity if there is none, slots are in key order after seal
+    int lowerSlotOf(long key) {
+        if (isSparse) {
+            int low = 0;
+            int high = capacity - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (Unsigned.isLess(slotKeys[mid], key)) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+        if (!Unsigned.isLess(baseKey, key))
+            return 0;
+        return Unsigned.isLess(key - baseKey, capacity) ? (int) (key - baseKey) : capacity;
+    }
+
+    private void grow(int newCapacity) {
+        for (int i = 0; i < codeColumns.length; i++) {
+            if (codeColumns[i] != null) {
+                codeColumns[i] = Arrays.copyOf(codeColumns[i], newCapacity);
+                Arrays.fill(codeColumns[i], capacity, newCapacity, CODE_ABSENT);
+            }
+            if (intColumns[i] != null) {
+                intColumns[i] = Arrays.copyOf(intColumns[i], newCapacity);
+                Arrays.fill(intColumns[i], capacity, newCapacity, INT_ABSENT);
+            }
+            if (longColumns[i] != null) {
+                longColumns[i] = Arrays.copyOf(longColumns[i], newCapacity);
+                Arrays.fill(longColumns[i], capacity, newCapacity, ABSENT);
+            }
+            if (rawColumns[i] != null)
+                rawColumns[i] = Arrays.copyOf(rawColumns[i], newCapacity);
+        }
+        if (liveBits != null)
+            liveBits = Arrays.copyOf(liveBits, (newCapacity + WORD_BITS - 1) / WORD_BITS);
+        slotKeys = Arrays.copyOf(slotKeys, newCapacity);
+        capacity = newCapacity;
+    }
+
+    /**
+     * used by master thread, after restore and before eval, no writes after it
+     * sparse: live rows are moved into slots [0, liveNum) in key order, so that eval walks slots as keys
+     */
+    void seal() {
+        if (!isSparse || slotsByKey == null)
+            return;
+        long[] liveKeys = new long[slotNum];
+        int liveNum = 0;
+        for (int slot = nextLiveSlot(0, slotNum); slot != -1; slot = nextLiveSlot(slot + 1, slotNum)) {
+            liveKeys[liveNum++] = slotKeys[slot];
+        }
+        Unsigned.sort(liveKeys, 0, liveNum);
+        int[] order = new int[liveNum];
+        for (int i = 0; i < liveNum; i++) {
+            order[i] = slotsByKey.get(liveKeys[i]);
+        }
+        for (int i = 0; i < codeColumns.length; i++) {
+            if (codeColumns[i] != null) {
+                short[] column = new short[liveNum];
+                for (int j = 0; j < liveNum; j++) {
+                    column[j] = codeColumns[i][order[j]];
+                }
+                codeColumns[i] = column;
+            }
+            if (intColumns[i] != null) {
+                int[] column = new int[liveNum];
+                for (int j = 0; j < liveNum; j++) {
+                    column[j] = intColumns[i][order[j]];
+                }
+                intColumns[i] = column;
+            }
+            if (longColumns[i] != null) {
+                long[] column = new long[liveNum];
+                for (int j = 0; j < liveNum; j++) {
+                    column[j] = longColumns[i][order[j]];
+                }
+                longColumns[i] = column;
+            }
+            if (rawColumns[i] != null) {
+                byte[][] column = new byte[liveNum][];
+                for (int j = 0; j < liveNum; j++) {
+                    column[j] = rawColumns[i][order[j]];
+                }
+                rawColumns[i] = column;
+            }
+        }
+        slotKeys = Arrays.copyOf(liveKeys, liveNum);
+        slotNum = liveNum;
+        capacity = liveNum;
+        liveBits = null;
+        for (int slot = 0; slot < liveNum; slot++) {
+            setLive(slot);
+        }
+        slotsByKey = null;
+    }
+
+    public boolean isLive(int slot) {
+        return liveBits != null && (liveBits[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    public void setLive(int slot) {
+        if (liveBits == null)
+            liveBits = new long[(capacity + WORD_BITS - 1) / WORD_BITS];
+        liveBits[slot >>> 6] |= 1L << slot;
+    }
+
+    public void clearLive(int slot) {
+        if (liveBits != null)
+            liveBits[slot >>> 6] &= ~(1L << slot);
+    }
+
+    // next live slot in [fromSlot, toSlot), or -1
+    int nextLiveSlot(int fromSlot, int toSlot) {
+        if (liveBits == null || fromSlot >= toSlot)
+            return -1;
+        int wordIndex = fromSlot >>> 6;
+        long word = liveBits[wordIndex] & (-1L << fromSlot);
+        while (true) {
+            if (word != 0) {
+                int slot = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+                return slot < toSlot ? slot : -1;
+            }
+            if (++wordIndex > (toSlot - 1) >>> 6)
+                return -1;
+            word = liveBits[wordIndex];
+        }
+    }
+
+    // eval: live rows in [fromSlot, toSlot)
+    int liveNum(int fromSlot, int toSlot) {
+        if (liveBits == null || fromSlot >= toSlot)
+            return 0;
+        int fromWord = fromSlot >>> 6;
+        int toWord = (toSlot - 1) >>> 6;
+        int liveNum = 0;
+        for (int i = fromWord; i <= toWord; i++) {
+            long word = liveBits[i];
+            if (i == fromWord)
+                word &= -1L << fromSlot;
+            if (i == toWord)
+                word &= -1L >>> (63 - ((toSlot - 1) & 63));
+            liveNum += Long.bitCount(word);
+        }
+        return liveNum;
+    }
+
+    // eval: exact bytes of the result lines of the live rows in [fromSlot, toSlot), as InsertOperation formats them
+    // read straight from the columns, cheaper than loading and preparing each line
+    int lineBytes(int fromSlot, int toSlot) {
+        int[] outputOrder = tableSchema.outputOrder();
+        int length = 0;
+        for (int slot = nextLiveSlot(fromSlot, toSlot); slot != -1; slot = nextLiveSlot(slot + 1, toSlot)) {
+            length += InsertOperation.getLongLen(keyOf(slot)) + 1 + outputOrder.length;
+            for (int index : outputOrder) {
+                if (!isAllocated(index))
+                    continue;
+                if (codeColumns[index] != null) {
+                    short code = codeColumns[index][slot];
+                    if (code == RAW_CODE) {
+                        length += rawColumns[index][slot].length;
+                    } else if (code != CODE_ABSENT) {
+                        length += tableSchema.dictionaryOf(index).decode(code).length;
+                    }
+                } else {
+                    length += valueBytes(longColumns[index] != null ? longColumns[index][slot] : fromInt(intColumns[index][slot]));
+                }
+            }
+        }
+        return length;
+    }
+
+    private static int valueBytes(long value) {
+        return value == ABSENT ? 0 : value == NULL_VALUE ? InsertOperation.NULL_LENGTH : InsertOperation.getLongLen(value);
+    }
+
+    private static boolean fitsInt(long value) {
+        return value == ABSENT || value == NULL_VALUE || (value > INT_NULL && value <= Integer.MAX_VALUE);
+    }
+
+    private static int toInt(long value) {
+        return value == ABSENT ? INT_ABSENT : value == NULL_VALUE ? INT_NULL : (int) value;
+    }
+
+    private static long fromInt(int value) {
+        return value == INT_ABSENT ? ABSENT : value == INT_NULL ? NULL_VALUE : value;
+    }
+
+    private void ensureColumnNum(int columnNum) {
+        if (codeColumns.length < columnNum) {
+            codeColumns = Arrays.copyOf(codeColumns, columnNum);
+            intColumns = Arrays.copyOf(intColumns, columnNum);
+            longColumns = Arrays.copyOf(longColumns, columnNum);
+            rawColumns = Arrays.copyOf(rawColumns, columnNum);
+        }
+    }
+
+    private boolean isAllocated(int index) {
+        return index < codeColumns.length &&
+                (codeColumns[index] != null || intColumns[index] != null || longColumns[index] != null);
+    }
+
+    private void allocate(int index) {
+        ensureColumnNum(index + 1);
+        if (tableSchema.isStringColumn(index)) {
+            codeColumns[index] = new short[capacity];
+            Arrays.fill(codeColumns[index], CODE_ABSENT);
+        } else {
+            intColumns[index] = new int[capacity];
+            Arrays.fill(intColumns[index], INT_ABSENT);
+        }
+    }
+
+    private void widen(int index) {
+        int[] intColumn = intColumns[index];
+        long[] longColumn = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            longColumn[i] = fromInt(intColumn[i]);
+        }
+        longColumns[index] = longColumn;
+        intColumns[index] = null;
+    }
+
+    private void write(int index, int slot, long value, byte[] rawValue) {
+        if (!isAllocated(index)) {
+            if (value == ABSENT)
+                return;
+            allocate(index);
+        }
+        short[] codeColumn = codeColumns[index];
+        if (codeColumn != null) {
+            codeColumn[slot] = value == ABSENT ? CODE_ABSENT : (short) value;
+            if (value == RAW_CODE) {
+                if (rawColumns[index] == null)
+                    rawColumns[index] = new byte[capacity][];
+                rawColumns[index][slot] = rawValue;
+            }
+            return;
+        }
+        if (longColumns[index] == null) {
+            if (fitsInt(value)) {
+                intColumns[index][slot] = toInt(value);
+                return;
+            }
+            widen(index);
+        }
+        longColumns[index][slot] = value;
+    }
+
+    // insert: overwrite every column of the slot, merge: only columns present in values
+    public void writeColumns(int slot, long[] values, byte[][] rawValues, boolean isMerge) {
+        int columnNum = Math.max(values.length, codeColumns.length);
+        for (int i = 0; i < columnNum; i++) {
+            long value = i < values.length ? values[i] : ABSENT;
+            if (!isMerge || value != ABSENT)
+                write(i, slot, value, value == RAW_CODE ? rawValues[i] : null);
+        }
+    }
+
+    // restore: an insert, or an update of a key which is not live, starts from an empty row
+    public void clearRow(int slot) {
+        for (int i = 0; i < codeColumns.length; i++) {
+            write(i, slot, ABSENT, null);
+        }
+    }
+
+    // restore: one column of a packed record, rawValue only for RAW_CODE
+    public void writeColumn(int slot, int index, long value, byte[] rawValue) {
+        write(index, slot, value, rawValue);
+    }
+
+    // eval: load the slot into a reusable cursor, rawValues has one entry per value
+    public void readColumns(int slot, long[] values, byte[][] rawValues) {
+        for (int i = 0; i < values.length; i++) {
+            if (!isAllocated(i)) {
+                values[i] = ABSENT;
+            } else if (codeColumns[i] != null) {
+                short code = codeColumns[i][slot];
+                values[i] = code == CODE_ABSENT ? ABSENT : code;
+                rawValues[i] = code == RAW_CODE ? rawColumns[i][slot] : null;
+            } else if (longColumns[i] != null) {
+                values[i] = longColumns[i][slot];
+            } else {
+                values[i] = fromInt(intColumns[i][slot]);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SIMD within a register: byte search and decimal parsing 8 bytes at a time over ByteBuffer.getLong
+ * buffers must be in little-endian order, so that the byte at the lowest index is the lowest byte of the word
+ */
+final class Swar {
+    static final long PIPES = 0x7C7C7C7C7C7C7C7CL;
+    static final long LINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private Swar() {
+    }
+
+    // high bit set in each zero byte of x, exact: no false positive next to a zero byte
+    private static long zeroBytes(long x) {
+        return ~(((x & LOW_7_BITS) + LOW_7_BITS) | x | LOW_7_BITS);
+    }
+
+    // offset of the first byte equal to the pattern byte, 8 if none
+    static int firstIndexIn(long word, long pattern) {
+        return Long.numberOfTrailingZeros(zeroBytes(word ^ pattern)) >>> 3;
+    }
+
+    // offset of the last byte equal to the pattern byte, -1 if none
+    static int lastIndexIn(long word, long pattern) {
+        return 7 - (Long.numberOfLeadingZeros(zeroBytes(word ^ pattern)) >>> 3);
+    }
+
+    // first target at or after from, the target must exist
+    static int indexOf(ByteBuffer byteBuffer, int from, long pattern, byte target) {
+        int lastWordIndex = byteBuffer.limit() - 8;
+        while (from <= lastWordIndex) {
+            int offset = firstIndexIn(byteBuffer.getLong(from), pattern);
+            if (offset != 8)
+                return from + offset;
+            from += 8;
+        }
+        while (byteBuffer.get(from) != target) {
+            from++;
+        }
+        return from;
+    }
+
+    // last target at or before from, -1 if none
+    static int lastIndexOf(ByteBuffer byteBuffer, int from, long pattern, byte target) {
+        while (from >= 7) {
+            int offset = lastIndexIn(byteBuffer.getLong(from - 7), pattern);
+            if (offset != -1)
+                return from - 7 + offset;
+            from -= 8;
+        }
+        while (from >= 0 && byteBuffer.get(from) != target) {
+            from--;
+        }
+        return from;
+    }
+
+    // digitNum in [1, 8] ascii digits in the low bytes of word, no loop and no branch per digit
+    static long parseDigits(long word, int digitNum) {
+        // drop the bytes after the digits, the shifted-in zeros act as leading zeros
+        long value = (word & 0x0F0F0F0F0F0F0F0FL) << ((8 - digitNum) << 3);
+        // pairs, then quads, then all 8 digits
+        value = (value * 2561) >>> 8;
+        value = ((value & 0x00FF00FF00FF00FFL) * 6553601) >>> 16;
+        value = ((value & 0x0000FFFF0000FFFFL) * 42949672960001L) >>> 32;
+        return value;
+    }
+}
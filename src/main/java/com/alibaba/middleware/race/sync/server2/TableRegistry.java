@@ -0,0 +1,116 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.alibaba.middleware.race.sync.Constants.FILED_SPLITTER;
+
+/**
+ * routes `schema|table` of the record header to its TableSchema, table id = registration order
+ * lookups are lock-free, only the first record of a table takes the registry lock
+ */
+class TableRegistry {
+    private static final ConcurrentHashMap<ByteKey, TableSchema> tableMap = new ConcurrentHashMap<>(64, 0.75f, 16);
+    private static volatile TableSchema[] tables = new TableSchema[0];
+    private static ResultSinkFactory resultSinkFactory;
+
+    private static final ThreadLocal<byte[]> probeBytes = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+    private static final ThreadLocal<ByteKey> probeKey = new ThreadLocal<ByteKey>() {
+        @Override
+        protected ByteKey initialValue() {
+            return new ByteKey();
+        }
+    };
+
+    // used by master thread, before scanning
+    static void init(ResultSinkFactory sinkFactory) {
+        tableMap.clear();
+        tables = new TableSchema[0];
+        resultSinkFactory = sinkFactory;
+    }
+
+    static int tableNum() {
+        return tables.length;
+    }
+
+    // used by transform thread pool, name in (nameSplitterIndex, nameEndIndex), `|op|pk descriptor|` follows
+    static TableSchema lookup(ByteBuffer byteBuffer, int nameSplitterIndex, int nameEndIndex) {
+        int nameLen = nameEndIndex - nameSplitterIndex - 1;
+        byte[] bytes = probeBytes.get();
+        if (bytes.length < nameLen) {
+            bytes = new byte[nameLen << 1];
+            probeBytes.set(bytes);
+        }
+        for (int i = 0; i < nameLen; i++) {
+            bytes[i] = byteBuffer.get(nameSplitterIndex + 1 + i);
+        }
+        TableSchema tableSchema = tableMap.get(probeKey.get().reset(bytes, 0, nameLen));
+        if (tableSchema != null)
+            return tableSchema;
+
+        int keyDescriptorLen = 0;
+        while (byteBuffer.get(nameEndIndex + 3 + keyDescriptorLen) != FILED_SPLITTER) {
+            keyDescriptorLen++;
+        }
+        return register(Arrays.copyOf(bytes, nameLen), keyDescriptorLen);
+    }
+
+    private static synchronized TableSchema register(byte[] nameBytes, int keyDescriptorLen) {
+        ByteKey key = new ByteKey().reset(nameBytes, 0, nameBytes.length);
+        TableSchema tableSchema = tableMap.get(key);
+        if (tableSchema != null)
+            return tableSchema;
+
+        String name = new String(nameBytes);
+        int splitterIndex = name.indexOf(FILED_SPLITTER);
+        boolean isSelected = resultSinkFactory.sinkOf(name.substring(0, splitterIndex), name.substring(splitterIndex + 1)) != null;
+        tableSchema = new TableSchema(tables.length, nameBytes, keyDescriptorLen, isSelected);
+        if (isSelected && PipelinedComputation.isSplitCompute) {
+            tableSchema.streamWriter = new OperationStreamWriter(tableSchema, sinkOf(tableSchema));
+        }
+        TableSchema[] newTables = Arrays.copyOf(tables, tables.length + 1);
+        newTables[tableSchema.tableId] = tableSchema;
+        tables = newTables;
+        tableMap.put(key, tableSchema);
+        return tableSchema;
+    }
+
+    // used by Checkpoint, before scanning, tables are restored in table id order
+    static TableSchema restore(byte[] nameBytes, int keyDescriptorLen) {
+        return register(nameBytes, keyDescriptorLen);
+    }
+
+    static TableSchema[] allTables() {
+        return tables;
+    }
+
+    // used by master thread, after all scanning finished, tables in `schema.table` order
+    static List<TableSchema> selectedTables() {
+        List<TableSchema> selected = new ArrayList<>();
+        for (TableSchema tableSchema : tables) {
+            if (tableSchema.isSelected)
+                selected.add(tableSchema);
+        }
+        Collections.sort(selected, new Comparator<TableSchema>() {
+            @Override
+            public int compare(TableSchema o1, TableSchema o2) {
+                return o1.toString().compareTo(o2.toString());
+            }
+        });
+        return selected;
+    }
+
+    static ResultSink sinkOf(TableSchema tableSchema) {
+        return resultSinkFactory.sinkOf(tableSchema.schemaName, tableSchema.tableName);
+    }
+}
@@ -0,0 +1,63 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.RESTORE_SHARD_NUM;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.pkLowerBound;
+import static com.alibaba.middleware.race.sync.server2.PipelinedComputation.pkUpperBound;
+
+/**
+ * restore state of one table: key-range shards over (pkLowerBound, pkUpperBound), each owns its ShardRowStore
+ * a shard of at most DENSE_MAX_CAPACITY keys is bounded, dense once it fills up, a wider one sparse,
+ * so that any range of unsigned 64-bit keys works
+ */
+class TableRestoreEngine {
+    // exclusive upper key of each shard, the last one is pkUpperBound
+    private final long[] shardEnds;
+    final RestoreShard[] shards;
+
+    TableRestoreEngine(TableSchema tableSchema) {
+        shardEnds = new long[RESTORE_SHARD_NUM];
+        shards = new RestoreShard[RESTORE_SHARD_NUM];
+        long shardBase = pkLowerBound + 1;
+        for (int i = 0; i < RESTORE_SHARD_NUM; i++) {
+            shardEnds[i] = i == RESTORE_SHARD_NUM - 1 ? pkUpperBound : shardEndOf(i);
+            // unsigned width, any shard of more than DENSE_MAX_CAPACITY keys is sparse
+            long width = shardEnds[i] - shardBase;
+            ShardRowStore store = !Unsigned.isLess(ShardRowStore.DENSE_MAX_CAPACITY, width) ?
+                    ShardRowStore.bounded(tableSchema, shardBase, (int) width) : ShardRowStore.sparse(tableSchema);
+            shards[i] = new RestoreShard(store);
+            shardBase = shardEnds[i];
+        }
+    }
+
+    // even split of the unsigned range without overflow, bounds divided first
+    private static long shardEndOf(int i) {
+        long shardEnd = Unsigned.divide(pkLowerBound, RESTORE_SHARD_NUM) * (RESTORE_SHARD_NUM - i - 1)
+                + Unsigned.divide(pkUpperBound, RESTORE_SHARD_NUM) * (i + 1);
+        return Unsigned.max(pkLowerBound + 1, Unsigned.min(pkUpperBound, shardEnd));
+    }
+
+    // used by transform thread pool, to pack each operation into the buffer of its shard
+    int shardIndexOf(long key) {
+        int index = 0;
+        while (index < shardEnds.length - 1 && !Unsigned.isLess(key, shardEnds[index])) {
+            index++;
+        }
+        return index;
+    }
+
+    // used by transform thread pool, after the previous slice published, null: no operation of the shard
+    void publish(OperationBuffer[] shardBuffers) throws InterruptedException {
+        for (int i = 0; i < shards.length; i++) {
+            if (shardBuffers[i] != null) {
+                shards[i].publish(shardBuffers[i]);
+            }
+        }
+    }
+
+    // used by master thread, after restore, before eval
+    void seal() {
+        for (RestoreShard shard : shards) {
+            shard.store.seal();
+        }
+    }
+}
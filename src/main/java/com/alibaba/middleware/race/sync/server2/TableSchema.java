@@ -0,0 +1,172 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.alibaba.middleware.race.sync.Constants.FILED_SPLITTER;
+
+/**
+ * schema and restore state of one table, registered by TableRegistry on the first record of `schema|table`
+ * columns are indexed in discovery order, the layout is copy-on-write, so scanners read it without locking
+ */
+public class TableSchema {
+    final int tableId;
+    // `schema|table`, as it appears in the record header
+    final byte[] nameBytes;
+    public final String schemaName;
+    public final String tableName;
+    // from `|` before op to `|` after pk descriptor, e.g. `|I|id:1:1|`
+    final int keyJumpLen;
+    // false: no sink wants this table, records are only scanned for the chunk summary
+    final boolean isSelected;
+    final TableRestoreEngine restoreEngine;
+    // split compute: operations are streamed to the client instead of restored, set before the table is published
+    OperationStreamWriter streamWriter;
+
+    private volatile ColumnLayout columnLayout = new ColumnLayout(new byte[0][], new ColumnDictionary[0], null);
+
+    static class ColumnLayout {
+        final byte[][] descriptors;
+        // descriptor length + 1, used for jumping over `|name:type:isPk`
+        final int[] skipLens;
+        final boolean[] isStringColumn;
+        // null for numeric columns
+        final ColumnDictionary[] dictionaries;
+        final FieldNameMatcher fieldNameMatcher;
+        // column order of a full record (insert or delete), null until one is seen
+        final int[] outputOrder;
+
+        ColumnLayout(byte[][] descriptors, ColumnDictionary[] dictionaries, int[] outputOrder) {
+            this.descriptors = descriptors;
+            this.dictionaries = dictionaries;
+            this.outputOrder = outputOrder;
+            this.skipLens = new int[descriptors.length];
+            this.isStringColumn = new boolean[descriptors.length];
+            for (int i = 0; i < descriptors.length; i++) {
+                skipLens[i] = descriptors[i].length + 1;
+                isStringColumn[i] = dictionaries[i] != null;
+            }
+            this.fieldNameMatcher = new FieldNameMatcher(descriptors);
+        }
+
+        boolean isComplete() {
+            return outputOrder != null;
+        }
+
+        int columnNum() {
+            return descriptors.length;
+        }
+
+        // splitterIndex: `|` before the descriptor
+        boolean isDescriptorAt(int index, ByteBuffer byteBuffer, int splitterIndex) {
+            byte[] descriptor = descriptors[index];
+            for (int i = 0; i < descriptor.length; i++) {
+                if (byteBuffer.get(splitterIndex + 1 + i) != descriptor[i])
+                    return false;
+            }
+            return byteBuffer.get(splitterIndex + 1 + descriptor.length) == FILED_SPLITTER;
+        }
+    }
+
+    TableSchema(int tableId, byte[] nameBytes, int keyDescriptorLen, boolean isSelected) {
+        this.tableId = tableId;
+        this.nameBytes = nameBytes;
+        String name = new String(nameBytes);
+        int splitterIndex = name.indexOf(FILED_SPLITTER);
+        this.schemaName = name.substring(0, splitterIndex);
+        this.tableName = name.substring(splitterIndex + 1);
+        this.keyJumpLen = keyDescriptorLen + 3;
+        this.isSelected = isSelected;
+        this.restoreEngine = isSelected ? new TableRestoreEngine(this) : null;
+    }
+
+    // splitterIndex: `|` before `schema|table`
+    boolean isNameAt(ByteBuffer byteBuffer, int splitterIndex) {
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (byteBuffer.get(splitterIndex + 1 + i) != nameBytes[i])
+                return false;
+        }
+        return byteBuffer.get(splitterIndex + 1 + nameBytes.length) == FILED_SPLITTER;
+    }
+
+    ColumnLayout layout() {
+        return columnLayout;
+    }
+
+    static boolean isStringDescriptor(byte[] descriptor) {
+        // name:type:isPk, type 2 is string
+        return descriptor[descriptor.length - 3] == '2';
+    }
+
+    private static int indexOf(byte[][] descriptors, byte[] descriptor) {
+        for (int i = 0; i < descriptors.length; i++) {
+            if (Arrays.equals(descriptors[i], descriptor))
+                return i;
+        }
+        return -1;
+    }
+
+    // used by transform thread pool, a column seen in an update before any full record of the table
+    synchronized int registerColumn(byte[] descriptor) {
+        ColumnLayout layout = columnLayout;
+        int index = indexOf(layout.descriptors, descriptor);
+        if (index != -1)
+            return index;
+        if (layout.isComplete())
+            throw new IllegalStateException("unknown column " + new String(descriptor) + " in " + this);
+
+        byte[][] descriptors = Arrays.copyOf(layout.descriptors, layout.columnNum() + 1);
+        ColumnDictionary[] dictionaries = Arrays.copyOf(layout.dictionaries, layout.columnNum() + 1);
+        descriptors[layout.columnNum()] = descriptor;
+        dictionaries[layout.columnNum()] = isStringDescriptor(descriptor) ? new ColumnDictionary() : null;
+        columnLayout = new ColumnLayout(descriptors, dictionaries, null);
+        return layout.columnNum();
+    }
+
+    // used by RecordField, descriptors of a full record in their order
+    synchronized void completeLayout(List<byte[]> recordDescriptors) {
+        if (columnLayout.isComplete())
+            return;
+        int[] outputOrder = new int[recordDescriptors.size()];
+        for (int i = 0; i < outputOrder.length; i++) {
+            outputOrder[i] = registerColumn(recordDescriptors.get(i));
+        }
+        ColumnLayout layout = columnLayout;
+        columnLayout = new ColumnLayout(layout.descriptors, layout.dictionaries, outputOrder);
+    }
+
+    // used by Checkpoint, before scanning
+    synchronized void restoreLayout(byte[][] descriptors, ColumnDictionary[] dictionaries, int[] outputOrder) {
+        columnLayout = new ColumnLayout(descriptors, dictionaries, outputOrder);
+    }
+
+    // used by eval, after all scanning finished
+    public int[] outputOrder() {
+        ColumnLayout layout = columnLayout;
+        if (layout.outputOrder != null)
+            return layout.outputOrder;
+        int[] discoveryOrder = new int[layout.columnNum()];
+        for (int i = 0; i < discoveryOrder.length; i++) {
+            discoveryOrder[i] = i;
+        }
+        return discoveryOrder;
+    }
+
+    public int columnNum() {
+        return columnLayout.columnNum();
+    }
+
+    public boolean isStringColumn(int index) {
+        return columnLayout.isStringColumn[index];
+    }
+
+    public ColumnDictionary dictionaryOf(int index) {
+        return columnLayout.dictionaries[index];
+    }
+
+    @Override
+    public String toString() {
+        return schemaName + "." + tableName;
+    }
+}
@@ -0,0 +1,124 @@
+package com.alibaba.middleware.race.sync.server2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * keys and numeric columns are unsigned 64-bit, 0 <= x <= 2^64-1, held in a long
+ * scanning computes 10 * x + digit mod 2^64, exact for them, ordering, splitting, parsing and printing go through here
+ * Java 7 has no Long.compareUnsigned and friends: adding Long.MIN_VALUE maps unsigned order to signed order
+ */
+public final class Unsigned {
+    public static final long MAX_VALUE = -1L;
+    // 10^19, the smallest value of 20 digits
+    private static final long TEN_POW_19 = -8446744073709551616L;
+    // POWERS_OF_TEN[i] = 10^(i+1), digits by compares instead of a division per digit
+    private static final long[] POWERS_OF_TEN = new long[18];
+
+    static {
+        POWERS_OF_TEN[0] = 10;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private Unsigned() {
+    }
+
+    public static int compare(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    public static boolean isLess(long a, long b) {
+        return a + Long.MIN_VALUE < b + Long.MIN_VALUE;
+    }
+
+    public static long min(long a, long b) {
+        return isLess(a, b) ? a : b;
+    }
+
+    public static long max(long a, long b) {
+        return isLess(a, b) ? b : a;
+    }
+
+    // divisor > 0: half of the value fits a signed division, the quotient is off by at most one
+    public static long divide(long value, long divisor) {
+        if (value >= 0)
+            return value / divisor;
+        long quotient = ((value >>> 1) / divisor) << 1;
+        return isLess(value - quotient * divisor, divisor) ? quotient : quotient + 1;
+    }
+
+    // in place, e.g. the live keys of a sparse shard
+    public static void sort(long[] values, int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            values[i] += Long.MIN_VALUE;
+        }
+        Arrays.sort(values, fromIndex, toIndex);
+        for (int i = fromIndex; i < toIndex; i++) {
+            values[i] += Long.MIN_VALUE;
+        }
+    }
+
+    // decimal digits only, as in the log, e.g. range bounds of the command line
+    public static long parse(String value) {
+        if (value.isEmpty())
+            throw new NumberFormatException("empty number");
+        long result = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("not an unsigned number: " + value);
+            // result * 10 + digit > 2^64-1
+            if (isLess(divide(MAX_VALUE - digit, 10), result))
+                throw new NumberFormatException("above 2^64-1: " + value);
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    public static int digitNum(long value) {
+        if (value < 0)
+            return isLess(value, TEN_POW_19) ? 19 : 20;
+        int digitNum = 1;
+        while (digitNum <= POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digitNum - 1])
+            ++digitNum;
+        return digitNum;
+    }
+
+    // into [offset, offset + digitNum) of bytes, digitNum of digitNum(value)
+    public static void putDigits(long value, byte[] bytes, int offset, int digitNum) {
+        int i = offset + digitNum - 1;
+        if (value < 0) {
+            long quotient = divide(value, 10);
+            bytes[i--] = (byte) (value - quotient * 10 + '0');
+            value = quotient;
+        }
+        for (; i >= offset; i--) {
+            bytes[i] = (byte) (value % 10 + '0');
+            value /= 10;
+        }
+    }
+
+    // absolute, the position of line is left unchanged
+    public static void putDigits(long value, ByteBuffer line, int offset, int digitNum) {
+        int i = offset + digitNum - 1;
+        if (value < 0) {
+            long quotient = divide(value, 10);
+            line.put(i--, (byte) (value - quotient * 10 + '0'));
+            value = quotient;
+        }
+        for (; i >= offset; i--) {
+            line.put(i, (byte) (value % 10 + '0'));
+            value /= 10;
+        }
+    }
+
+    public static String toString(long value) {
+        byte[] digits = new byte[digitNum(value)];
+        putDigits(value, digits, 0, digits.length);
+        return new String(digits);
+    }
+}
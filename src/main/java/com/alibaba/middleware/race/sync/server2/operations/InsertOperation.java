@@ -1,91 +1,112 @@
 package com.alibaba.middleware.race.sync.server2.operations;
 
-import static com.alibaba.middleware.race.sync.server2.RestoreComputation.ycheArr;
+import com.alibaba.middleware.race.sync.server2.ShardRowStore;
+import com.alibaba.middleware.race.sync.server2.TableSchema;
+import com.alibaba.middleware.race.sync.server2.Unsigned;
+
+import java.nio.ByteBuffer;
+
+import static com.alibaba.middleware.race.sync.server2.ColumnDictionary.RAW_CODE;
 
 /**
  * Created by yche on 6/19/17.
  */
 public class InsertOperation extends NonDeleteOperation {
 
-    public InsertOperation(long relevantKey) {
-        super(relevantKey);
+    public InsertOperation(long relevantKey, int columnNum) {
+        super(relevantKey, columnNum);
     }
 
-    private static int getLongLen(long pk) {
-        int noOfDigit = 1;
-        while ((pk = pk / 10) != 0)
-            ++noOfDigit;
-        return noOfDigit;
+    // digits of the unsigned value, keys and numeric columns are 0 <= x <= 2^64-1
+    public static int getLongLen(long pk) {
+        return Unsigned.digitNum(pk);
     }
 
-    private static void parseLong(long pk, byte[] byteArr, int offset, int noDigits) {
-        long leftLong = pk;
-        for (int i = 0; i < noDigits; i++) {
-            byteArr[offset + noDigits - i - 1] = (byte) (leftLong % 10 + '0');
-            leftLong /= 10;
-        }
+    private static void putBytes(byte[] value, ByteBuffer line) {
+        line.put(value);
+        line.put((byte) '\t');
     }
 
-    private static void parseSingleChar(byte index, byte[] byteArr, int offset) {
-        System.arraycopy(NonDeleteOperation.BYTES_POINTERS[index], 0, byteArr, offset, 3);
+    // noDigits of getLongLen, unsigned
+    public static void putLong(long value, ByteBuffer line, int noDigits) {
+        int offset = line.position();
+        Unsigned.putDigits(value, line, offset, noDigits);
+        line.position(offset + noDigits);
+        line.put((byte) '\t');
     }
 
-    public byte[] getOneLineBytesEfficient() {
-        byte[] tmpBytes = new byte[48];
-        int nextOffset = 0;
-        // 1st: pk
-        int pkDigits = getLongLen(relevantKey);
-        parseLong(relevantKey, tmpBytes, nextOffset, pkDigits);
-        nextOffset += pkDigits;
-        tmpBytes[nextOffset] = '\t';
-        nextOffset += 1;
+    private static final byte[] NULL_BYTES = "NULL".getBytes();
+    public static final int NULL_LENGTH = NULL_BYTES.length;
+    private static final byte[] EMPTY_BYTES = new byte[0];
 
-        // 2nd: first name
-        parseSingleChar(firstNameIndex, tmpBytes, nextOffset);
-        nextOffset += 3;
-        tmpBytes[nextOffset] = '\t';
-        nextOffset += 1;
-
-        // 3rd: second name
-        parseSingleChar(lastNameFirstIndex, tmpBytes, nextOffset);
-        nextOffset += 3;
-        if (lastNameSecondIndex != -1) {
-            parseSingleChar(lastNameSecondIndex, tmpBytes, nextOffset);
-            nextOffset += 3;
-        }
-        tmpBytes[nextOffset] = '\t';
-        nextOffset += 1;
+    // only for eval cursors, string column bytes of the current line
+    private byte[][] columnBytes;
 
-        // 4th: sex
-        parseSingleChar(sexIndex, tmpBytes, nextOffset);
-        nextOffset += 3;
-        tmpBytes[nextOffset] = '\t';
-        nextOffset += 1;
+    private byte[] stringBytes(TableSchema tableSchema, int index) {
+        long code = values[index];
+        if (code == ABSENT)
+            return EMPTY_BYTES;
+        if (code == RAW_CODE)
+            return rawValues[index];
+        return tableSchema.dictionaryOf(index).decode((short) code);
+    }
 
-        // 5th score
-        pkDigits = getLongLen(score);
-        parseLong(score, tmpBytes, nextOffset, pkDigits);
-        nextOffset += pkDigits;
-        tmpBytes[nextOffset] = '\t';
-        nextOffset += 1;
+    // 1st of a line: decode string columns through dictionaries, exact line length
+    public int lineLength(TableSchema tableSchema) {
+        int[] outputOrder = tableSchema.outputOrder();
+        if (columnBytes == null || columnBytes.length < values.length)
+            columnBytes = new byte[values.length][];
+        int lineLen = getLongLen(relevantKey) + 1;
+        for (int index : outputOrder) {
+            long value = values[index];
+            if (tableSchema.isStringColumn(index)) {
+                columnBytes[index] = stringBytes(tableSchema, index);
+                lineLen += columnBytes[index].length + 1;
+            } else if (value == ABSENT) {
+                lineLen += 1;
+            } else if (value == NULL_VALUE) {
+                lineLen += NULL_BYTES.length + 1;
+            } else {
+                lineLen += getLongLen(value) + 1;
+            }
+        }
+        return lineLen;
+    }
 
-        // 6th score2
-        if (score2 != -1) {
-            pkDigits = getLongLen(score2);
-            parseLong(score2, tmpBytes, nextOffset, pkDigits);
-            nextOffset += pkDigits;
-            tmpBytes[nextOffset] = '\t';
-            nextOffset += 1;
+    // 2nd of a line, after lineLength: pk, then columns in the order of a full record, tab separated
+    // line has at least lineLength bytes remaining, e.g. a mapped result segment
+    public void putLine(TableSchema tableSchema, ByteBuffer line) {
+        putLong(relevantKey, line, getLongLen(relevantKey));
+        for (int index : tableSchema.outputOrder()) {
+            long value = values[index];
+            if (tableSchema.isStringColumn(index)) {
+                putBytes(columnBytes[index], line);
+            } else if (value == ABSENT) {
+                putBytes(EMPTY_BYTES, line);
+            } else if (value == NULL_VALUE) {
+                putBytes(NULL_BYTES, line);
+            } else {
+                putLong(value, line, getLongLen(value));
+            }
         }
-        tmpBytes[nextOffset - 1] = '\n';
+        line.put(line.position() - 1, (byte) '\n');
+    }
 
-        byte[] retBytes = new byte[nextOffset];
-        System.arraycopy(tmpBytes, 0, retBytes, 0, nextOffset);
+    public byte[] getOneLineBytesEfficient(TableSchema tableSchema) {
+        byte[] retBytes = new byte[lineLength(tableSchema)];
+        putLine(tableSchema, ByteBuffer.wrap(retBytes));
         return retBytes;
     }
 
-    @Override
-    public void act() {
-        ycheArr[(int) (this.relevantKey)] = this;
+    // used by eval workers, reuse one cursor per worker
+    public void loadFromStore(ShardRowStore store, int columnNum, int slot) {
+        if (values.length != columnNum) {
+            values = new long[columnNum];
+            rawValues = new byte[columnNum][];
+        } else if (rawValues == null) {
+            rawValues = new byte[columnNum][];
+        }
+        this.relevantKey = store.keyOf(slot);
+        store.readColumns(slot, values, rawValues);
     }
 }
@@ -1,6 +1,7 @@
 package com.alibaba.middleware.race.sync.server2.unitTest;
 
 import com.alibaba.middleware.race.sync.server2.PipelinedComputation;
+import com.alibaba.middleware.race.sync.server2.ResultSink;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -20,13 +21,17 @@ public class APIUsageDemo {
         for (int i = 1; i < 11; i++) {
             filePathList.add(srcFolder + File.separator + i + ".txt");
         }
-        PipelinedComputation.globalComputation(filePathList, 100000, 2000000);
-
-        ByteBuffer byteBuffer = ByteBuffer.allocate(40 * 1024 * 1024);
-        PipelinedComputation.putThingsIntoByteBuffer(byteBuffer);
-        byteBuffer.flip();
-        FileOutputStream bufferedWriter = new FileOutputStream("/tmp/yche_me.txt");
-        bufferedWriter.write(byteBuffer.array(), 0, byteBuffer.limit());
+        final FileOutputStream bufferedWriter = new FileOutputStream("/tmp/yche_me.txt");
+        PipelinedComputation.globalComputation(filePathList, 100000, 2000000, new ResultSink() {
+            @Override
+            public void send(ByteBuffer segment) {
+                try {
+                    bufferedWriter.write(segment.array(), segment.arrayOffset(), segment.limit());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
 
         bufferedWriter.close();
         long endTime = System.currentTimeMillis();
@@ -0,0 +1,313 @@
+package com.alibaba.middleware.race.sync.server2.unitTest;
+
+import com.alibaba.middleware.race.sync.server2.Unsigned;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * synthetic canal-format records of the `middleware5|student` table, reproducible by seed
+ * op mix and key distribution are configurable, updates and deletes only touch live keys
+ * usage: CanalLogGenerator dataDir fileNum recordNum [seed] [UNIFORM|SEQUENTIAL|SKEWED] [skew] [i,u,d,pk] [reinsertRatio] [keyBase]
+ */
+public class CanalLogGenerator {
+    public enum KeyDistribution {
+        // new keys uniform in [1, maxKey], live keys picked uniformly
+        UNIFORM,
+        // new keys increasing, live keys picked uniformly
+        SEQUENTIAL,
+        // new keys uniform, live keys picked by power law, see skew
+        SKEWED
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] NAME_CHARS = {"赵", "钱", "孙", "李", "周", "吴", "郑", "王", "冯", "陈",
+            "城", "人", "益", "甲", "乐", "田", "雨", "天", "明", "京"};
+    private static final String[] SEX_VALUES = {"男", "女"};
+    private static final String[] COLUMNS = {"first_name:2:0", "last_name:2:0", "sex:2:0", "score:1:0", "score2:1:0"};
+
+    private final Random random;
+    private long seq = 0;
+
+    // op mix weights
+    private int insertWeight = 3;
+    private int updateWeight = 5;
+    private int deleteWeight = 1;
+    private int pkUpdateWeight = 1;
+
+    private KeyDistribution keyDistribution = KeyDistribution.UNIFORM;
+    // SKEWED: 0 uniform, towards 1 more ops on fewer keys
+    private double skew = 0.8;
+    private long maxKey = 8000000L;
+    private long nextSequentialKey = 1;
+    // added to every key in the log, unsigned, e.g. 2^63 - maxKey / 2 for keys on both sides of 2^63
+    private long keyBase = 0;
+
+    // live keys, key -> index, for O(1) pick and removal
+    private long[] liveKeys = new long[1024];
+    private int liveNum = 0;
+    private final TLongIntHashMap liveIndexes = new TLongIntHashMap();
+
+    // recently deleted keys, inserts take one of them with reinsertRatio
+    private double reinsertRatio = 0.0;
+    private final long[] deletedKeys = new long[4096];
+    private int deletedNum = 0;
+
+    public CanalLogGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public CanalLogGenerator opMix(int insertWeight, int updateWeight, int deleteWeight, int pkUpdateWeight) {
+        this.insertWeight = insertWeight;
+        this.updateWeight = updateWeight;
+        this.deleteWeight = deleteWeight;
+        this.pkUpdateWeight = pkUpdateWeight;
+        return this;
+    }
+
+    public CanalLogGenerator keyDistribution(KeyDistribution keyDistribution, double skew) {
+        this.keyDistribution = keyDistribution;
+        this.skew = skew;
+        return this;
+    }
+
+    public CanalLogGenerator reinsertRatio(double reinsertRatio) {
+        this.reinsertRatio = reinsertRatio;
+        return this;
+    }
+
+    public CanalLogGenerator maxKey(long maxKey) {
+        this.maxKey = maxKey;
+        return this;
+    }
+
+    public CanalLogGenerator keyBase(long keyBase) {
+        this.keyBase = keyBase;
+        return this;
+    }
+
+    // live keys without emitting their inserts, e.g. for an update-only buffer
+    public CanalLogGenerator prepopulate(int keyNum) {
+        for (int i = 0; i < keyNum; i++) {
+            addLive(newKey());
+        }
+        return this;
+    }
+
+    public long maxKey() {
+        return maxKey;
+    }
+
+    private void addLive(long key) {
+        if (liveNum == liveKeys.length) {
+            long[] larger = new long[liveNum << 1];
+            System.arraycopy(liveKeys, 0, larger, 0, liveNum);
+            liveKeys = larger;
+        }
+        liveIndexes.put(key, liveNum);
+        liveKeys[liveNum++] = key;
+    }
+
+    private void removeLive(long key) {
+        int index = liveIndexes.remove(key);
+        long lastKey = liveKeys[--liveNum];
+        if (index != liveNum) {
+            liveKeys[index] = lastKey;
+            liveIndexes.put(lastKey, index);
+        }
+    }
+
+    private long newKey() {
+        while (true) {
+            long key = keyDistribution == KeyDistribution.SEQUENTIAL ? nextSequentialKey++ :
+                    1 + (long) (random.nextDouble() * maxKey);
+            if (!liveIndexes.containsKey(key))
+                return key;
+        }
+    }
+
+    private void addDeleted(long key) {
+        if (deletedNum == deletedKeys.length) {
+            deletedKeys[random.nextInt(deletedNum)] = key;
+        } else {
+            deletedKeys[deletedNum++] = key;
+        }
+    }
+
+    // a deleted key which is not live again, otherwise a new one
+    private long insertKey() {
+        while (deletedNum > 0 && random.nextDouble() < reinsertRatio) {
+            int index = random.nextInt(deletedNum);
+            long key = deletedKeys[index];
+            deletedKeys[index] = deletedKeys[--deletedNum];
+            if (!liveIndexes.containsKey(key))
+                return key;
+        }
+        return newKey();
+    }
+
+    private long pickLiveKey() {
+        int index;
+        if (keyDistribution == KeyDistribution.SKEWED) {
+            index = (int) (liveNum * Math.pow(random.nextDouble(), 1.0 / (1.0 - skew)));
+        } else {
+            index = random.nextInt(liveNum);
+        }
+        return liveKeys[Math.min(index, liveNum - 1)];
+    }
+
+    private String nextValue(int columnIndex) {
+        switch (columnIndex) {
+            case 0:
+                return NAME_CHARS[random.nextInt(NAME_CHARS.length)];
+            case 1:
+                return NAME_CHARS[random.nextInt(NAME_CHARS.length)] +
+                        (random.nextBoolean() ? NAME_CHARS[random.nextInt(NAME_CHARS.length)] : "");
+            case 2:
+                return SEX_VALUES[random.nextInt(SEX_VALUES.length)];
+            case 3:
+                return String.valueOf(random.nextInt(1000));
+            default:
+                return String.valueOf(random.nextInt(100000));
+        }
+    }
+
+    private StringBuilder header(StringBuilder stringBuilder, char operation) {
+        seq++;
+        return stringBuilder.append("|mysql-bin.").append(String.format("%019d", seq)).append('|')
+                .append(1496737946000L + seq).append("|middleware5|student|").append(operation).append("|id:1:1|");
+    }
+
+    private StringBuilder appendKey(StringBuilder stringBuilder, long key) {
+        return stringBuilder.append(Unsigned.toString(keyBase + key)).append('|');
+    }
+
+    private void insert(StringBuilder stringBuilder, long key) {
+        appendKey(header(stringBuilder, 'I').append("NULL|"), key);
+        for (int i = 0; i < COLUMNS.length; i++) {
+            stringBuilder.append(COLUMNS[i]).append("|NULL|").append(nextValue(i)).append('|');
+        }
+        stringBuilder.append('\n');
+        addLive(key);
+    }
+
+    // previous values are not tracked, they are never read by the restore
+    private void update(StringBuilder stringBuilder, long key) {
+        int columnIndex = random.nextInt(COLUMNS.length);
+        appendKey(appendKey(header(stringBuilder, 'U'), key), key)
+                .append(COLUMNS[columnIndex]).append('|').append(nextValue(columnIndex)).append('|')
+                .append(nextValue(columnIndex)).append("|\n");
+    }
+
+    private void delete(StringBuilder stringBuilder, long key) {
+        appendKey(header(stringBuilder, 'D'), key).append("NULL|");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            stringBuilder.append(COLUMNS[i]).append('|').append(nextValue(i)).append("|NULL|");
+        }
+        stringBuilder.append('\n');
+        removeLive(key);
+        addDeleted(key);
+    }
+
+    // no columns, the restore keeps an empty row under the new key
+    private void pkUpdate(StringBuilder stringBuilder, long key) {
+        long newKey = newKey();
+        appendKey(appendKey(header(stringBuilder, 'U'), key), newKey).append('\n');
+        removeLive(key);
+        addDeleted(key);
+        addLive(newKey);
+    }
+
+    // one record, falls back to insert while no key is live
+    public void nextRecord(StringBuilder stringBuilder) {
+        int totalWeight = insertWeight + updateWeight + deleteWeight + pkUpdateWeight;
+        int pick = random.nextInt(totalWeight);
+        if (liveNum == 0 || pick < insertWeight) {
+            insert(stringBuilder, insertKey());
+        } else if (pick < insertWeight + updateWeight) {
+            update(stringBuilder, pickLiveKey());
+        } else if (pick < insertWeight + updateWeight + deleteWeight) {
+            delete(stringBuilder, pickLiveKey());
+        } else {
+            pkUpdate(stringBuilder, pickLiveKey());
+        }
+    }
+
+    public void write(OutputStream outputStream, int recordNum) throws IOException {
+        StringBuilder stringBuilder = new StringBuilder(64 * 1024);
+        for (int i = 0; i < recordNum; i++) {
+            nextRecord(stringBuilder);
+            if (stringBuilder.length() >= 60 * 1024) {
+                outputStream.write(stringBuilder.toString().getBytes(UTF_8));
+                stringBuilder.setLength(0);
+            }
+        }
+        outputStream.write(stringBuilder.toString().getBytes(UTF_8));
+    }
+
+    // recordNum records over fileNum files `1.txt` ... `fileNum.txt`, in log order
+    public void writeFiles(File dataDir, int fileNum, long recordNum) throws IOException {
+        dataDir.mkdirs();
+        for (int i = 0; i < fileNum; i++) {
+            long fileRecordNum = recordNum / fileNum + (i < recordNum % fileNum ? 1 : 0);
+            try (OutputStream outputStream = new BufferedOutputStream(
+                    new FileOutputStream(new File(dataDir, (i + 1) + ".txt")), 1 << 20)) {
+                while (fileRecordNum > 0) {
+                    int batchNum = (int) Math.min(fileRecordNum, 1 << 20);
+                    write(outputStream, batchNum);
+                    fileRecordNum -= batchNum;
+                }
+            }
+        }
+    }
+
+    // direct buffer, like a mapped chunk
+    public ByteBuffer generate(int recordNum) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(recordNum * 160);
+        try {
+            write(outputStream, recordNum);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        byte[] bytes = outputStream.toByteArray();
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(bytes.length);
+        byteBuffer.put(bytes);
+        byteBuffer.flip();
+        return byteBuffer;
+    }
+
+    public static void main(String[] args) throws IOException {
+        File dataDir = new File(args[0]);
+        int fileNum = Integer.parseInt(args[1]);
+        long recordNum = Long.parseLong(args[2]);
+        CanalLogGenerator generator = new CanalLogGenerator(args.length > 3 ? Long.parseLong(args[3]) : 0);
+        if (args.length > 4)
+            generator.keyDistribution(KeyDistribution.valueOf(args[4]), args.length > 5 ? Double.parseDouble(args[5]) : 0.8);
+        if (args.length > 6) {
+            String[] weights = args[6].split(",");
+            generator.opMix(Integer.parseInt(weights[0]), Integer.parseInt(weights[1]),
+                    Integer.parseInt(weights[2]), Integer.parseInt(weights[3]));
+        }
+        if (args.length > 7)
+            generator.reinsertRatio(Double.parseDouble(args[7]));
+        if (args.length > 8)
+            generator.keyBase(Unsigned.parse(args[8]));
+
+        long startTime = System.currentTimeMillis();
+        generator.writeFiles(dataDir, fileNum, recordNum);
+        long totalBytes = 0;
+        for (int i = 0; i < fileNum; i++) {
+            totalBytes += new File(dataDir, (i + 1) + ".txt").length();
+        }
+        System.out.println("generated " + recordNum + " records, " + totalBytes + " bytes in " + fileNum + " files, "
+                + (System.currentTimeMillis() - startTime) + " ms, live keys:" + generator.liveNum);
+    }
+}
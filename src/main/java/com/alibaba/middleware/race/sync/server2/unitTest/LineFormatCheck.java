@@ -0,0 +1,76 @@
+package com.alibaba.middleware.race.sync.server2.unitTest;
+
+import com.alibaba.middleware.race.sync.server2.Unsigned;
+import com.alibaba.middleware.race.sync.server2.operations.InsertOperation;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * keys and numeric columns are unsigned 64-bit, as InsertOperation formats them and Unsigned parses, orders and
+ * divides them, against BigInteger, e.g. keys above 2^63 which a long holds as negative
+ * getLongLen is also the length ShardRowStore.lineBytes sizes the eval segments with
+ * usage: LineFormatCheck [randomValueNum], exits 1 on the first mismatch
+ */
+public class LineFormatCheck {
+    private static final BigInteger TWO_POW_64 = BigInteger.ONE.shiftLeft(64);
+    // 0, 9, 10, 2^31-1, 10^18, 2^63-1, 2^63, 2^63+1, 10^19-1, 10^19, 2^64-1
+    private static final long[] EDGE_VALUES = {0, 9, 10, Integer.MAX_VALUE, 1000000000000000000L,
+            Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1, -8446744073709551617L, -8446744073709551616L, -1L};
+
+    public static void main(String[] args) {
+        int randomValueNum = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        ByteBuffer line = ByteBuffer.allocate(32);
+        Random random = new Random(0);
+        long[] values = new long[EDGE_VALUES.length + randomValueNum];
+        for (int i = 0; i < values.length; i++) {
+            // every digit count, above 2^63 included
+            values[i] = i < EDGE_VALUES.length ? EDGE_VALUES[i] : random.nextLong() >>> random.nextInt(64);
+            check(values[i], line);
+            long other = values[random.nextInt(i + 1)];
+            check(Integer.signum(Unsigned.compare(values[i], other)) == unsignedOf(values[i]).compareTo(unsignedOf(other)),
+                    "compare " + values[i] + " " + other);
+            int divisor = 1 + random.nextInt(64);
+            check(unsignedOf(Unsigned.divide(values[i], divisor)).equals(unsignedOf(values[i]).divide(BigInteger.valueOf(divisor))),
+                    "divide " + values[i] + " by " + divisor);
+        }
+        Unsigned.sort(values, 0, values.length);
+        for (int i = 1; i < values.length; i++) {
+            check(unsignedOf(values[i - 1]).compareTo(unsignedOf(values[i])) <= 0, "sort at " + i);
+        }
+        for (String bad : new String[]{"18446744073709551616", "-1", "", "12a"}) {
+            try {
+                Unsigned.parse(bad);
+                check(false, "parse accepted `" + bad + "`");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+        System.out.println("line format: " + values.length + " values ok, e.g. "
+                + Arrays.toString(new String[]{Unsigned.toString(Long.MIN_VALUE), Unsigned.toString(-1L)}));
+    }
+
+    private static BigInteger unsignedOf(long value) {
+        BigInteger signed = BigInteger.valueOf(value);
+        return value < 0 ? signed.add(TWO_POW_64) : signed;
+    }
+
+    private static void check(long value, ByteBuffer line) {
+        String expected = unsignedOf(value).toString();
+        int len = InsertOperation.getLongLen(value);
+        line.clear();
+        InsertOperation.putLong(value, line, len);
+        String actual = new String(line.array(), 0, line.position());
+        check(len == expected.length() && actual.equals(expected + '\t'), "format " + expected + ": length " + len + ", `" + actual + "`");
+        check(Unsigned.parse(expected) == value, "parse " + expected);
+    }
+
+    private static void check(boolean isOk, String message) {
+        if (!isOk) {
+            System.err.println("mismatch: " + message);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.alibaba.middleware.race.sync.server2.unitTest;
+
+import com.alibaba.middleware.race.sync.Client;
+import com.alibaba.middleware.race.sync.Constants;
+import com.alibaba.middleware.race.sync.NioSocket.ArgumentsPayloadBuilder;
+import com.alibaba.middleware.race.sync.NioSocket.NioServer;
+import com.alibaba.middleware.race.sync.NioSocket.RangeServer;
+import com.alibaba.middleware.race.sync.Server;
+import com.alibaba.middleware.race.sync.server2.FileUtil;
+import com.alibaba.middleware.race.sync.server2.PipelinedComputation;
+import com.alibaba.middleware.race.sync.server2.Unsigned;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server and Client in one JVM, through NioServer / NioClient over loopback, e.g. on CanalLogGenerator files
+ * usage: LoopbackHarness dataDir resultFile schema table start end [cold|warm|both] [port] [result|split|compact|compact-deflate|zero-copy|striped-K|ranges]
+ * both: one child JVM per mode, the pipeline pools only run once per JVM
+ * split: the client restores and evaluates the operation stream, see OperationStreamWriter
+ * compact, compact-deflate: CompactResultCodec frames instead of TSV rows
+ * zero-copy: TSV rows from a mapped spool with transferTo, into a mapped result file
+ * striped-K: TSV rows striped over K connections, e.g. striped-4
+ * ranges: then RANGE_CLIENT_NUM concurrent clients request consecutive sub-ranges from a RangeServer,
+ * into resultFile.0 ..., together the same rows as resultFile
+ */
+public class LoopbackHarness {
+    private static final double GB = 1024.0 * 1024 * 1024;
+    private static final double MB = 1024.0 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 6 ? args[6] : "both";
+        if (mode.equals("both")) {
+            for (String childMode : new String[]{"cold", "warm"}) {
+                runChild(args, childMode);
+            }
+        } else {
+            try {
+                runOnce(args, mode);
+            } catch (IOException e) {
+                // e.g. a failed scan, the client waits for a result which is never sent
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void runChild(String[] args, String mode) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoopbackHarness.class.getName());
+        for (int i = 0; i < 6; i++) {
+            command.add(args[i]);
+        }
+        command.add(mode);
+        command.add(args.length > 7 ? args[7] : String.valueOf(Constants.SERVER_PORT));
+        if (args.length > 8)
+            command.add(args[8]);
+        new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    private static void runOnce(String[] args, String mode) throws IOException, InterruptedException {
+        String dataDir = args[0];
+        final String resultFilePath = args[1];
+        String[] serverArgs = {args[2], args[3], args[4], args[5]};
+        final int port = args.length > 7 ? Integer.parseInt(args[7]) : Constants.SERVER_PORT;
+
+        ArrayList<String> filePathList = FileUtil.listInputFiles(dataDir);
+        long inputBytes = 0;
+        for (String filePath : filePathList) {
+            inputBytes += new File(filePath).length();
+        }
+        if (mode.equals("cold")) {
+            dropPageCache();
+        } else {
+            warmPageCache(filePathList);
+        }
+        // every run restores from scratch
+        PipelinedComputation.isCheckpointEnabled = false;
+        String wireMode = args.length > 8 ? args[8] : "result";
+        PipelinedComputation.isSplitCompute = wireMode.equals(ArgumentsPayloadBuilder.SPLIT_COMPUTE);
+        PipelinedComputation.isCompactWire = wireMode.startsWith(ArgumentsPayloadBuilder.COMPACT_WIRE);
+        PipelinedComputation.isWireDeflated = wireMode.equals(ArgumentsPayloadBuilder.COMPACT_DEFLATE_WIRE);
+        PipelinedComputation.isZeroCopyResult = wireMode.equals(ArgumentsPayloadBuilder.ZERO_COPY_RESULT);
+        NioServer.TRANSFER_STREAM_NUM = wireMode.startsWith(ArgumentsPayloadBuilder.STRIPED_RESULT) ?
+                Integer.parseInt(wireMode.substring(ArgumentsPayloadBuilder.STRIPED_RESULT.length() + 1)) : 1;
+
+        NioServer nioServer = new NioServer(Server.payloadArgs(serverArgs), port);
+        nioServer.start();
+        Thread clientThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                new Client("127.0.0.1", port).start(resultFilePath);
+            }
+        }, "loopback-client");
+
+        long startTime = System.nanoTime();
+        clientThread.start();
+        new Server(serverArgs, nioServer, dataDir).start();
+        long serverNanos = System.nanoTime() - startTime;
+        clientThread.join();
+        long totalNanos = System.nanoTime() - startTime;
+
+        long resultBytes = new File(resultFilePath).length();
+        long restoreNanos = PipelinedComputation.restoreNanos;
+        long evalSendNanos = PipelinedComputation.evalSendNanos;
+        String tag = "[" + mode + (wireMode.equals("result") ? "" : " " + wireMode) + "] ";
+        System.out.println(tag + String.format("input %.3f GB in %d files, result %.3f MB, wire %.3f MB",
+                inputBytes / GB, filePathList.size(), resultBytes / MB, nioServer.sentBytes() / MB));
+        System.out.println(tag + String.format("restore   %8.3f s  %6.3f GB/s of input", restoreNanos / 1e9, gbPerSecond(inputBytes, restoreNanos)));
+        System.out.println(tag + String.format("eval-send %8.3f s  %6.3f GB/s of result", evalSendNanos / 1e9, gbPerSecond(resultBytes, evalSendNanos)));
+        System.out.println(tag + String.format("finish    %8.3f s", (totalNanos - restoreNanos - evalSendNanos) / 1e9));
+        System.out.println(tag + String.format("total     %8.3f s  %6.3f GB/s of input", totalNanos / 1e9, gbPerSecond(inputBytes, totalNanos)));
+        System.out.println(tag + String.format("server    %8.3f s", serverNanos / 1e9));
+        if (wireMode.equals("ranges"))
+            requestRanges(args, port, resultFilePath);
+    }
+
+    private static final int RANGE_CLIENT_NUM = 4;
+
+    // from the resident state of the run above, sub-ranges share their bounds, e.g. (s, b) and (b - 1, e)
+    private static void requestRanges(String[] args, final int port, final String resultFilePath) throws IOException, InterruptedException {
+        RangeServer rangeServer = new RangeServer(port);
+        rangeServer.start();
+        long start = Unsigned.parse(args[4]);
+        long end = Unsigned.parse(args[5]);
+        long step = Unsigned.divide(end - start, RANGE_CLIENT_NUM);
+        final long[] requestNanos = new long[RANGE_CLIENT_NUM];
+        Thread[] clientThreads = new Thread[RANGE_CLIENT_NUM];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < RANGE_CLIENT_NUM; i++) {
+            final int clientIndex = i;
+            long lowerBound = start + step * i - (i > 0 ? 1 : 0);
+            long upperBound = i == RANGE_CLIENT_NUM - 1 ? end : start + step * (i + 1);
+            final String[] rangeArgs = {args[2], args[3], Unsigned.toString(lowerBound), Unsigned.toString(upperBound)};
+            clientThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long requestStartTime = System.nanoTime();
+                    new Client("127.0.0.1", port).requestRange(rangeArgs, resultFilePath + "." + clientIndex);
+                    requestNanos[clientIndex] = System.nanoTime() - requestStartTime;
+                }
+            }, "range-client-" + i);
+            clientThreads[i].start();
+        }
+        for (Thread clientThread : clientThreads) {
+            clientThread.join();
+        }
+        long totalNanos = System.nanoTime() - startTime;
+        rangeServer.stop();
+        for (int i = 0; i < RANGE_CLIENT_NUM; i++) {
+            System.out.println(String.format("[ranges] client %d  %8.3f ms  %.3f MB", i, requestNanos[i] / 1e6,
+                    new File(resultFilePath + "." + i).length() / MB));
+        }
+        System.out.println(String.format("[ranges] total     %8.3f ms", totalNanos / 1e6));
+    }
+
+    private static double gbPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes / GB / (nanos / 1e9);
+    }
+
+    // needs root, otherwise the cold run is only as cold as the page cache happens to be
+    private static void dropPageCache() throws InterruptedException {
+        try {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            try (FileOutputStream outputStream = new FileOutputStream("/proc/sys/vm/drop_caches")) {
+                outputStream.write("3\n".getBytes());
+            }
+        } catch (IOException e) {
+            System.out.println("[cold] page cache not dropped: " + e.getMessage());
+        }
+    }
+
+    private static void warmPageCache(List<String> filePathList) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(4 * 1024 * 1024);
+        for (String filePath : filePathList) {
+            try (FileChannel fileChannel = new RandomAccessFile(filePath, "r").getChannel()) {
+                while (fileChannel.read(byteBuffer) >= 0) {
+                    byteBuffer.clear();
+                }
+            }
+        }
+    }
+}